@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The iteration shared by the engines which find matches of a
+ * {@link CompiledPattern} from a start node. The engine finds the matches of
+ * the required part of the pattern with {@link #findNextMatch()}, and this
+ * class combines each of them with the matches of the optional parts of the
+ * pattern found by an {@link OptionalPatternFinder}.
+ */
+abstract class AbstractPatternFinder implements Iterable<PatternMatch>,
+    Iterator<PatternMatch>
+{
+    private final PatternMatcher matcher;
+    private final CompiledPattern pattern;
+    private final boolean mergeOptional;
+    private OptionalPatternFinder optionalFinder;
+    private OptionalMatchCache optionalCache;
+    private PatternMatch match = null;
+    private PatternMatch optionalMatch = null;
+
+    /**
+     * @param mergeOptional whether the optional parts of the pattern should
+     * be matched and merged into the matches of this finder.
+     */
+    AbstractPatternFinder( PatternMatcher matcher, CompiledPattern pattern,
+        boolean mergeOptional )
+    {
+        this.matcher = matcher;
+        this.pattern = pattern;
+        this.mergeOptional = mergeOptional;
+    }
+
+    PatternMatcher matcher()
+    {
+        return matcher;
+    }
+
+    /**
+     * @return whether the optional parts of the pattern are merged into the
+     * matches of this finder.
+     */
+    boolean mergesOptional()
+    {
+        return mergeOptional;
+    }
+
+    /**
+     * @return the optional matches remembered during the iteration, or
+     * counting, of this finder.
+     */
+    OptionalMatchCache optionalCache()
+    {
+        if ( optionalCache == null )
+        {
+            optionalCache = new OptionalMatchCache( matcher, pattern );
+        }
+        return optionalCache;
+    }
+
+    /**
+     * @return the next match of the required part of the pattern, or
+     * {@code null} if there are no more.
+     */
+    abstract PatternMatch findNextMatch();
+
+    public Iterator<PatternMatch> iterator()
+    {
+        return this;
+    }
+
+    public boolean hasNext()
+    {
+        if ( match == null )
+        {
+            match = findNextMatch();
+            optionalFinder = null;
+        }
+        else if ( mergeOptional )
+        {
+            if ( optionalFinder == null )
+            {
+                optionalFinder = new OptionalPatternFinder( optionalCache(),
+                    pattern, match );
+            }
+            if ( optionalMatch == null )
+            {
+                optionalMatch = optionalFinder.findNextOptionalPatterns();
+            }
+            if ( optionalMatch == null && optionalFinder.anyMatchFound() )
+            {
+                match = null;
+                return hasNext();
+            }
+        }
+        return match != null;
+    }
+
+    public PatternMatch next()
+    {
+        if ( match == null )
+        {
+            match = findNextMatch();
+            optionalFinder = null;
+        }
+
+        PatternMatch matchToReturn = match;
+        PatternMatch optionalMatchToReturn = null;
+        if ( match != null && mergeOptional )
+        {
+            if ( optionalFinder == null )
+            {
+                optionalFinder = new OptionalPatternFinder( optionalCache(),
+                    pattern, match );
+            }
+            if ( optionalMatch == null )
+            {
+                optionalMatch = optionalFinder.findNextOptionalPatterns();
+            }
+            optionalMatchToReturn = optionalMatch;
+            optionalMatch = null;
+            if ( optionalMatchToReturn == null )
+            {
+                match = null;
+                if ( optionalFinder.anyMatchFound() )
+                {
+                    return next();
+                }
+            }
+        }
+        else
+        {
+            match = null;
+        }
+        if ( matchToReturn == null )
+        {
+            throw new NoSuchElementException();
+        }
+        return optionalMatchToReturn != null ? PatternMatch.merge(
+            matchToReturn, optionalMatchToReturn ) : matchToReturn;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -19,6 +19,9 @@
  */
 package org.neo4j.graphmatching;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -30,6 +33,19 @@ public abstract class CommonValueMatchers
     {
     }
 
+    /**
+     * Estimated relative costs of evaluating the matchers, used together
+     * with their estimated selectivity to evaluate the cheap and selective
+     * ones first.
+     */
+    static final int HAS_COST = 1;
+    static final int EXACT_COST = 2;
+    static final int RANGE_COST = 3;
+    static final int PREFIX_COST = 3;
+    static final int IN_COST = 3;
+    static final int UNKNOWN_COST = 10;
+    static final int REGEX_COST = 20;
+
     private static final ValueMatcher HAS = new ValueMatcher()
     {
         public boolean matches( Object value )
@@ -103,6 +119,175 @@ public abstract class CommonValueMatchers
         return new RegexMatcher( pattern );
     }
 
+    /**
+     * Checks that the value, or any item of an array value, is within a
+     * range, including both bounds. Numbers are compared by value, other
+     * values must be {@link Comparable} to the bounds.
+     *
+     * @param lower the lower bound, or {@code null} for no lower bound.
+     * @param upper the upper bound, or {@code null} for no upper bound.
+     * @return a matcher that verifies that a value is within the range.
+     */
+    public static RangeMatcher range( Object lower, Object upper )
+    {
+        return new RangeMatcher( lower, true, upper, true );
+    }
+
+    /**
+     * Checks that the value, or any item of an array value, is within a
+     * range. Numbers are compared by value, other values must be
+     * {@link Comparable} to the bounds.
+     *
+     * @param lower the lower bound, or {@code null} for no lower bound.
+     * @param lowerInclusive whether the lower bound is in the range.
+     * @param upper the upper bound, or {@code null} for no upper bound.
+     * @param upperInclusive whether the upper bound is in the range.
+     * @return a matcher that verifies that a value is within the range.
+     */
+    public static RangeMatcher range( Object lower, boolean lowerInclusive,
+        Object upper, boolean upperInclusive )
+    {
+        return new RangeMatcher( lower, lowerInclusive, upper,
+            upperInclusive );
+    }
+
+    /**
+     * Checks that the value, or any item of an array value, is a member of
+     * {@code values}. Integral numbers are members if they are equal by
+     * value to an integral member, whatever their type.
+     *
+     * @param values the values to look the value up in.
+     * @return a matcher that verifies that a value is a member of
+     * {@code values}.
+     */
+    public static InMatcher in( Set<?> values )
+    {
+        return new InMatcher( values );
+    }
+
+    /**
+     * Checks that the {@link String} value, or any item of a
+     * {@code String[]} value, starts with {@code prefix}.
+     *
+     * @param prefix the prefix the value must start with.
+     * @return a matcher that verifies that a value starts with
+     * {@code prefix}.
+     */
+    public static PrefixMatcher prefix( String prefix )
+    {
+        return new PrefixMatcher( prefix );
+    }
+
+    /**
+     * @param matcher the matcher to estimate the cost of.
+     * @return the estimated relative cost of evaluating {@code matcher}.
+     * Matchers not created by this class get {@link #UNKNOWN_COST}.
+     */
+    static int cost( ValueMatcher matcher )
+    {
+        if ( matcher == HAS )
+        {
+            return HAS_COST;
+        }
+        if ( matcher instanceof ExactMatcher )
+        {
+            return EXACT_COST;
+        }
+        if ( matcher instanceof ExactAnyMatcher )
+        {
+            // Scans arrays, and compares with each value unless there are
+            // so many that they are looked up instead
+            return EXACT_COST + Math.min( ( ( ExactAnyMatcher ) matcher )
+                .valuesToMatch.length, ExactAnyMatcher.HASH_THRESHOLD ) * 2;
+        }
+        if ( matcher instanceof RegexMatcher )
+        {
+            return REGEX_COST;
+        }
+        if ( matcher instanceof RangeMatcher )
+        {
+            return RANGE_COST;
+        }
+        if ( matcher instanceof PrefixMatcher )
+        {
+            return PREFIX_COST;
+        }
+        if ( matcher instanceof InMatcher )
+        {
+            return IN_COST;
+        }
+        return UNKNOWN_COST;
+    }
+
+    /**
+     * @param matcher the matcher to estimate the selectivity of.
+     * @return a rough estimate of the fraction of values {@code matcher}
+     * accepts.
+     */
+    static double selectivity( ValueMatcher matcher )
+    {
+        if ( matcher == HAS )
+        {
+            return 0.9;
+        }
+        if ( matcher instanceof ExactMatcher )
+        {
+            return 0.1;
+        }
+        if ( matcher instanceof ExactAnyMatcher )
+        {
+            return Math.min( 1.0, ( ( ExactAnyMatcher ) matcher )
+                .valuesToMatch.length * 0.1 );
+        }
+        if ( matcher instanceof RangeMatcher )
+        {
+            return ( ( RangeMatcher ) matcher ).estimatedSelectivity();
+        }
+        if ( matcher instanceof PrefixMatcher )
+        {
+            return ( ( PrefixMatcher ) matcher ).estimatedSelectivity();
+        }
+        if ( matcher instanceof InMatcher )
+        {
+            return ( ( InMatcher ) matcher ).estimatedSelectivity();
+        }
+        return 0.5;
+    }
+
+    /**
+     * @return the rank of a constraint with the given cost and selectivity,
+     * the expected cost of evaluating it per value it rejects. Constraints
+     * with lower ranks are evaluated first.
+     */
+    static double rank( int cost, double selectivity )
+    {
+        return cost / Math.max( 1.0 - selectivity, 0.01 );
+    }
+
+    /**
+     * @return the value {@code matcher} expects if it was created by
+     * {@link #exact(Object)}, else {@code null}.
+     */
+    static Object exactValue( ValueMatcher matcher )
+    {
+        return matcher instanceof ExactMatcher ?
+            ( ( ExactMatcher ) matcher ).valueToMatch : null;
+    }
+
+    /**
+     * @return whether {@code matcher} is known to never accept a missing
+     * property, i.e. a {@code null} value.
+     */
+    static boolean rejectsMissing( ValueMatcher matcher )
+    {
+        return matcher == HAS || matcher instanceof ExactMatcher ||
+            matcher instanceof ExactAnyMatcher ||
+            matcher instanceof RegexMatcher ||
+            matcher instanceof RangeMatcher ||
+            matcher instanceof InMatcher ||
+            matcher instanceof PrefixMatcher;
+    }
+
     private static class ExactMatcher implements ValueMatcher
     {
         private final Object valueToMatch;
@@ -118,30 +303,232 @@ public abstract class CommonValueMatchers
         }
     }
 
+    /**
+     * Matches a value, or any item of an array value, against a number of
+     * expected values. The expected values are sorted into one array per
+     * primitive type at construction, so that primitive array properties
+     * are scanned in place with a binary search per item, without boxing.
+     * The other expected values are looked up in a hash set if there are
+     * more than {@link #HASH_THRESHOLD} of them. A value only matches an
+     * expected value of the same type, like {@link Object#equals(Object)}.
+     */
     private static class ExactAnyMatcher implements ValueMatcher
     {
+        private static final int HASH_THRESHOLD = 8;
+
         private final Object[] valuesToMatch;
+        private final Set<Object> valueSet;
+        private final long[] longs;
+        private final long[] ints;
+        private final long[] shorts;
+        private final long[] bytes;
+        private final long[] chars;
+        private final long[] doubleBits;
+        private final long[] floatBits;
+        private final long[] booleans;
 
         public ExactAnyMatcher( Object... valueToMatch )
         {
             this.valuesToMatch = valueToMatch;
+            this.valueSet = valueToMatch.length > HASH_THRESHOLD ?
+                new HashSet<Object>( Arrays.asList( valueToMatch ) ) : null;
+            this.longs = sortedKeys( valueToMatch, Long.class );
+            this.ints = sortedKeys( valueToMatch, Integer.class );
+            this.shorts = sortedKeys( valueToMatch, Short.class );
+            this.bytes = sortedKeys( valueToMatch, Byte.class );
+            this.chars = sortedKeys( valueToMatch, Character.class );
+            this.doubleBits = sortedKeys( valueToMatch, Double.class );
+            this.floatBits = sortedKeys( valueToMatch, Float.class );
+            this.booleans = sortedKeys( valueToMatch, Boolean.class );
+        }
+
+        /**
+         * @return the {@link #key(Object)}s of the values of type
+         * {@code type}, sorted.
+         */
+        private static long[] sortedKeys( Object[] values, Class<?> type )
+        {
+            int count = 0;
+            for ( Object value : values )
+            {
+                count += type.isInstance( value ) ? 1 : 0;
+            }
+            long[] keys = new long[ count ];
+            count = 0;
+            for ( Object value : values )
+            {
+                if ( type.isInstance( value ) )
+                {
+                    keys[ count++ ] = key( value );
+                }
+            }
+            Arrays.sort( keys );
+            return keys;
+        }
+
+        /**
+         * @return a {@code long} which is equal for two values of the same
+         * primitive wrapper type if and only if they are equal.
+         */
+        private static long key( Object value )
+        {
+            if ( value instanceof Double )
+            {
+                return Double.doubleToLongBits( ( Double ) value );
+            }
+            else if ( value instanceof Float )
+            {
+                return Float.floatToIntBits( ( Float ) value );
+            }
+            else if ( value instanceof Character )
+            {
+                return ( Character ) value;
+            }
+            else if ( value instanceof Boolean )
+            {
+                return ( Boolean ) value ? 1 : 0;
+            }
+            return ( ( Number ) value ).longValue();
         }
 
         public boolean matches( Object value )
         {
-            if ( value != null )
+            if ( value == null )
             {
-                if ( value.getClass().isArray() )
+                return false;
+            }
+            else if ( !value.getClass().isArray() )
+            {
+                return anyMatches( value );
+            }
+            else if ( value instanceof String[] )
+            {
+                for ( String item : ( String[] ) value )
                 {
-                    for ( Object item : ArrayPropertyUtil.propertyValueToCollection( value ) )
+                    if ( item != null && anyMatches( item ) )
                     {
-                        if ( item != null && anyMatches( item ) )
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof long[] )
+            {
+                if ( longs.length > 0 )
+                {
+                    for ( long item : ( long[] ) value )
+                    {
+                        if ( Arrays.binarySearch( longs, item ) >= 0 )
                         {
                             return true;
                         }
                     }
                 }
-                else if ( anyMatches( value ) )
+                return false;
+            }
+            else if ( value instanceof int[] )
+            {
+                if ( ints.length > 0 )
+                {
+                    for ( int item : ( int[] ) value )
+                    {
+                        if ( Arrays.binarySearch( ints, item ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof double[] )
+            {
+                if ( doubleBits.length > 0 )
+                {
+                    for ( double item : ( double[] ) value )
+                    {
+                        if ( Arrays.binarySearch( doubleBits,
+                            Double.doubleToLongBits( item ) ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof float[] )
+            {
+                if ( floatBits.length > 0 )
+                {
+                    for ( float item : ( float[] ) value )
+                    {
+                        if ( Arrays.binarySearch( floatBits,
+                            Float.floatToIntBits( item ) ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof short[] )
+            {
+                if ( shorts.length > 0 )
+                {
+                    for ( short item : ( short[] ) value )
+                    {
+                        if ( Arrays.binarySearch( shorts, item ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof byte[] )
+            {
+                if ( bytes.length > 0 )
+                {
+                    for ( byte item : ( byte[] ) value )
+                    {
+                        if ( Arrays.binarySearch( bytes, item ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof char[] )
+            {
+                if ( chars.length > 0 )
+                {
+                    for ( char item : ( char[] ) value )
+                    {
+                        if ( Arrays.binarySearch( chars, item ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            else if ( value instanceof boolean[] )
+            {
+                if ( booleans.length > 0 )
+                {
+                    for ( boolean item : ( boolean[] ) value )
+                    {
+                        if ( Arrays.binarySearch( booleans, item ? 1 : 0 ) >= 0 )
+                        {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            for ( Object item : ArrayPropertyUtil.propertyValueToCollection( value ) )
+            {
+                if ( item != null && anyMatches( item ) )
                 {
                     return true;
                 }
@@ -151,6 +538,10 @@ public abstract class CommonValueMatchers
 
         private boolean anyMatches( Object value )
         {
+            if ( valueSet != null )
+            {
+                return valueSet.contains( value );
+            }
             for ( Object matchValue : valuesToMatch )
             {
                 if ( value.equals( matchValue ) )
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphmatching.filter.CompareExpression;
+import org.neo4j.graphmatching.filter.FilterBinaryNode;
+import org.neo4j.graphmatching.filter.FilterExpression;
+import org.neo4j.graphmatching.filter.FilterValueGetter;
+import org.neo4j.graphmatching.filter.RegexPattern;
+
+/**
+ * A {@link FilterExpression} tree compiled at pattern compile time into
+ * flat arrays, one entry per expression in the tree, with the pattern node
+ * ordinal and property key of each leaf resolved and the operator of each
+ * {@link CompareExpression} turned into an {@link Operator}. Evaluating it
+ * reads the properties straight from the bound nodes, and scans array
+ * properties in place, so it doesn't allocate anything, apart from the
+ * {@link java.util.regex.Matcher} of a {@link RegexPattern} and the value
+ * getter of an expression of an unknown type, which is evaluated as it is.
+ *
+ * Values are compared like {@link CompareExpression} does: strings by their
+ * natural order against the string form of the value to compare against.
+ * Numbers, which {@link CompareExpression} can't read, are compared by
+ * value if the value to compare against is a number too.
+ */
+final class CompiledFilter
+{
+    enum Operator
+    {
+        LESS,
+        LESS_OR_EQUAL,
+        EQUAL,
+        GREATER_OR_EQUAL,
+        GREATER,
+        NEVER,
+        REGEX,
+        AND,
+        OR,
+        CUSTOM;
+
+        static Operator compare( String operator )
+        {
+            if ( operator.equals( "<" ) )
+            {
+                return LESS;
+            }
+            else if ( operator.equals( "<=" ) )
+            {
+                return LESS_OR_EQUAL;
+            }
+            else if ( operator.equals( "=" ) )
+            {
+                return EQUAL;
+            }
+            else if ( operator.equals( ">=" ) )
+            {
+                return GREATER_OR_EQUAL;
+            }
+            else if ( operator.equals( ">" ) )
+            {
+                return GREATER;
+            }
+            return NEVER;
+        }
+
+        boolean accepts( int comparison )
+        {
+            switch ( this )
+            {
+            case LESS:
+                return comparison < 0;
+            case LESS_OR_EQUAL:
+                return comparison <= 0;
+            case EQUAL:
+                return comparison == 0;
+            case GREATER_OR_EQUAL:
+                return comparison >= 0;
+            case GREATER:
+                return comparison > 0;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The node ordinal of a leaf reading a label which has no object
+     * variable, which fails when evaluated.
+     */
+    private static final int NO_SUCH_LABEL = -2;
+
+    private final CompiledPattern pattern;
+    private final Map<String, String> labelToProperty;
+    private final Operator[] operators;
+    private final int[] lefts;
+    private final int[] rights;
+    private final int[] nodes;
+    private final String[] labels;
+    private final String[] keys;
+    private final String[] strings;
+    private final boolean[] numeric;
+    private final boolean[] integral;
+    private final long[] longs;
+    private final double[] numbers;
+    private final Pattern[] patterns;
+    private final FilterExpression[] custom;
+
+    /**
+     * @param labelToProperty the property key to read for each label, the
+     * same for all the leaves with that label.
+     */
+    CompiledFilter( CompiledPattern pattern, FilterExpression expression,
+        Map<String, PatternNode> objectVariables,
+        Map<String, String> labelToProperty )
+    {
+        this.pattern = pattern;
+        this.labelToProperty = labelToProperty;
+        List<FilterExpression> flat = new ArrayList<FilterExpression>();
+        flatten( expression, flat );
+        int size = flat.size();
+        this.operators = new Operator[ size ];
+        this.lefts = new int[ size ];
+        this.rights = new int[ size ];
+        this.nodes = new int[ size ];
+        this.labels = new String[ size ];
+        this.keys = new String[ size ];
+        this.strings = new String[ size ];
+        this.numeric = new boolean[ size ];
+        this.integral = new boolean[ size ];
+        this.longs = new long[ size ];
+        this.numbers = new double[ size ];
+        this.patterns = new Pattern[ size ];
+        this.custom = new FilterExpression[ size ];
+        for ( int i = 0; i < size; i++ )
+        {
+            FilterExpression current = flat.get( i );
+            if ( current instanceof FilterBinaryNode )
+            {
+                FilterBinaryNode node = ( FilterBinaryNode ) current;
+                operators[ i ] = node.isAnd() ? Operator.AND : Operator.OR;
+                lefts[ i ] = indexOf( flat, node.getLeftExpression() );
+                rights[ i ] = indexOf( flat, node.getRightExpression() );
+            }
+            else if ( current instanceof CompareExpression )
+            {
+                CompareExpression compare = ( CompareExpression ) current;
+                operators[ i ] = Operator.compare( compare.getOperator() );
+                resolve( i, compare.getLabel(), objectVariables );
+                Object value = compare.getValue();
+                strings[ i ] = value.toString();
+                numeric[ i ] = value instanceof Number;
+                integral[ i ] = Numbers.isIntegral( value );
+                longs[ i ] = integral[ i ] ?
+                    ( ( Number ) value ).longValue() : 0;
+                numbers[ i ] = numeric[ i ] ?
+                    ( ( Number ) value ).doubleValue() : 0;
+            }
+            else if ( current instanceof RegexPattern )
+            {
+                RegexPattern regex = ( RegexPattern ) current;
+                operators[ i ] = Operator.REGEX;
+                resolve( i, regex.getLabel(), objectVariables );
+                patterns[ i ] = regex.getPattern();
+            }
+            else
+            {
+                operators[ i ] = Operator.CUSTOM;
+                custom[ i ] = current;
+            }
+        }
+    }
+
+    private static void flatten( FilterExpression expression,
+        List<FilterExpression> flat )
+    {
+        flat.add( expression );
+        if ( expression instanceof FilterBinaryNode )
+        {
+            FilterBinaryNode node = ( FilterBinaryNode ) expression;
+            flatten( node.getLeftExpression(), flat );
+            flatten( node.getRightExpression(), flat );
+        }
+    }
+
+    /**
+     * @return the index of {@code expression} itself, not of an equal one,
+     * since the same expression may appear more than once in the tree.
+     */
+    private static int indexOf( List<FilterExpression> flat,
+        FilterExpression expression )
+    {
+        for ( int i = flat.size() - 1; i >= 0; i-- )
+        {
+            if ( flat.get( i ) == expression )
+            {
+                return i;
+            }
+        }
+        throw new IllegalStateException( "Not in the tree: " + expression );
+    }
+
+    private void resolve( int index, String label,
+        Map<String, PatternNode> objectVariables )
+    {
+        PatternNode node = objectVariables.get( label );
+        labels[ index ] = label;
+        nodes[ index ] = node != null ? pattern.ordinalOf( node ) :
+            NO_SUCH_LABEL;
+        keys[ index ] = labelToProperty.get( label );
+    }
+
+    /**
+     * @return whether the bound nodes of {@code match} pass the expression.
+     */
+    boolean matches( PatternMatch match )
+    {
+        return evaluate( 0, match, null );
+    }
+
+    /**
+     * @return whether {@code node} passes the expression, which must only
+     * read the pattern node {@code node} is bound to.
+     */
+    boolean matches( Node node )
+    {
+        return evaluate( 0, null, node );
+    }
+
+    private boolean evaluate( int i, PatternMatch match, Node only )
+    {
+        switch ( operators[ i ] )
+        {
+        case AND:
+            return evaluate( lefts[ i ], match, only ) &&
+                evaluate( rights[ i ], match, only );
+        case OR:
+            return evaluate( lefts[ i ], match, only ) ||
+                evaluate( rights[ i ], match, only );
+        case CUSTOM:
+            return custom[ i ].matches( valueGetter( match, only ) );
+        case NEVER:
+            return false;
+        default:
+            return leafMatches( i, nodeFor( i, match, only ) );
+        }
+    }
+
+    private Node nodeFor( int i, PatternMatch match, Node only )
+    {
+        if ( nodes[ i ] == NO_SUCH_LABEL )
+        {
+            throw new RuntimeException( "No node for label '" + labels[ i ] +
+                "'" );
+        }
+        if ( only != null )
+        {
+            return only;
+        }
+        return nodes[ i ] != -1 ? match.nodeAt( nodes[ i ] ) : null;
+    }
+
+    private boolean leafMatches( int i, Node node )
+    {
+        if ( keys[ i ] == null )
+        {
+            throw new RuntimeException( "No property key for label '" +
+                labels[ i ] + "'" );
+        }
+        Object value = node != null ? node.getProperty( keys[ i ], null ) :
+            null;
+        if ( value == null )
+        {
+            return false;
+        }
+        if ( value instanceof String )
+        {
+            return valueMatches( i, ( String ) value );
+        }
+        else if ( value instanceof String[] )
+        {
+            for ( String item : ( String[] ) value )
+            {
+                if ( valueMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof long[] )
+        {
+            for ( long item : ( long[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof int[] )
+        {
+            for ( int item : ( int[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof double[] )
+        {
+            for ( double item : ( double[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof float[] )
+        {
+            for ( float item : ( float[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof short[] )
+        {
+            for ( short item : ( short[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof byte[] )
+        {
+            for ( byte item : ( byte[] ) value )
+            {
+                if ( numberMatches( i, item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( Numbers.isIntegral( value ) )
+        {
+            return numberMatches( i, ( ( Number ) value ).longValue() );
+        }
+        else if ( value instanceof Float )
+        {
+            return numberMatches( i, ( ( Float ) value ).floatValue() );
+        }
+        else if ( value instanceof Number )
+        {
+            return numberMatches( i, ( ( Number ) value ).doubleValue() );
+        }
+        else if ( value.getClass().isArray() )
+        {
+            for ( Object item : ArrayPropertyUtil.propertyValueToCollection(
+                value ) )
+            {
+                if ( valueMatches( i, item.toString() ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return valueMatches( i, value.toString() );
+    }
+
+    private boolean valueMatches( int i, String value )
+    {
+        if ( operators[ i ] == Operator.REGEX )
+        {
+            return patterns[ i ].matcher( value ).find();
+        }
+        return operators[ i ].accepts( value.compareTo( strings[ i ] ) );
+    }
+
+    private boolean numberMatches( int i, long value )
+    {
+        if ( operators[ i ] == Operator.REGEX || !numeric[ i ] )
+        {
+            return valueMatches( i, String.valueOf( value ) );
+        }
+        return operators[ i ].accepts( integral[ i ] ?
+            Numbers.compare( value, longs[ i ] ) :
+            Numbers.compare( value, numbers[ i ] ) );
+    }
+
+    private boolean numberMatches( int i, double value )
+    {
+        if ( operators[ i ] == Operator.REGEX || !numeric[ i ] )
+        {
+            return valueMatches( i, String.valueOf( value ) );
+        }
+        return operators[ i ].accepts( integral[ i ] ?
+            -Numbers.compare( longs[ i ], value ) :
+            Double.compare( value, numbers[ i ] ) );
+    }
+
+    /**
+     * Like {@link #numberMatches(int, double)}, but a float is turned into
+     * the same string as {@link Float#toString()} gives.
+     */
+    private boolean numberMatches( int i, float value )
+    {
+        if ( operators[ i ] == Operator.REGEX || !numeric[ i ] )
+        {
+            return valueMatches( i, String.valueOf( value ) );
+        }
+        return numberMatches( i, ( double ) value );
+    }
+
+    /**
+     * The value getter for an expression of an unknown type, which reads
+     * the nodes of the pattern nodes of the object variables, like
+     * FilteredPatternFinder always did.
+     */
+    private FilterValueGetter valueGetter( final PatternMatch match,
+        final Node only )
+    {
+        return new FilterValueGetter()
+        {
+            public String[] getValues( String label )
+            {
+                Node node = only;
+                if ( node == null )
+                {
+                    PatternNode pNode = pattern.objectVariables().get( label );
+                    if ( pNode == null )
+                    {
+                        throw new RuntimeException( "No node for label '" +
+                            label + "'" );
+                    }
+                    node = match.getNodeFor( pNode );
+                }
+                return PatternMatcher.filterValues( node, label,
+                    labelToProperty.get( label ) );
+            }
+        };
+    }
+}
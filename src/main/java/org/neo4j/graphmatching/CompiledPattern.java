@@ -0,0 +1,1044 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphmatching.filter.AbstractFilterExpression;
+import org.neo4j.graphmatching.filter.FilterBinaryNode;
+import org.neo4j.graphmatching.filter.FilterExpression;
+
+/**
+ * An immutable snapshot of a pattern graph, created by
+ * {@link PatternMatcher#compile(PatternNode)}. All the pattern nodes and
+ * pattern relationships reachable from the start node (and from any optional
+ * start nodes) are given dense ordinals, and their associations, property
+ * constraints and filters are frozen at compile time. Changes made to the
+ * {@link PatternNode}s and {@link PatternRelationship}s after compilation
+ * does not affect the compiled pattern.
+ *
+ * A compiled pattern holds no search state, all such state is kept by each
+ * execution of {@link PatternMatcher#match(CompiledPattern, Node)}. One
+ * compiled pattern can therefore be matched from many threads at once,
+ * given that the {@link ValueMatcher}s and {@link FilterExpression}s in it
+ * are thread safe (the ones in {@link CommonValueMatchers} are).
+ *
+ * The property constraints of each pattern object are ordered by estimated
+ * cost at compile time, so that f.ex. a {@link CommonValueMatchers#has()}
+ * which rejects a node is evaluated before a regular expression. An
+ * execution can re-rank them further by how often they reject, using its
+ * own {@link ConstraintFeedback}.
+ *
+ * FILTER expressions which only read properties of one pattern node of the
+ * required part, in the group of that pattern node, are moved to that
+ * pattern node at compile time and evaluated as soon as it is bound, like
+ * its property constraints. The expressions which read more than one
+ * pattern node, or a pattern node of an optional part, are evaluated on
+ * complete matches. Either way they are compiled into
+ * {@link CompiledFilter}s, which evaluate them without allocating.
+ */
+public final class CompiledPattern
+{
+    private static final int[] NO_RELATIONSHIPS = new int[ 0 ];
+
+    /**
+     * The part of the pattern a filter evaluated on complete matches reads,
+     * see {@link #postFilterParts}, when it isn't the index of an optional
+     * part.
+     */
+    private static final int REQUIRED_PART = -1;
+    private static final int SEVERAL_PARTS = -2;
+
+    private final int startNode;
+    private final int[] optionalStartNodes;
+    private final Map<String, PatternNode> objectVariables;
+
+    private final PatternNode[] nodes;
+    private final Node[] nodeAssociations;
+    private final PropertyConstraints[] nodeConstraints;
+    private final int[][] requiredRelationships;
+    private final int[][] optionalRelationships;
+    private final Map<PatternNode, Integer> nodeOrdinals;
+    private final int[] nodeLabels;
+    private final int[][] labelledNodes;
+
+    private final PatternRelationship[] relationships;
+    private final Relationship[] relationshipAssociations;
+    private final PropertyConstraints[] relationshipConstraints;
+    private final int[] firstNodes;
+    private final int[] secondNodes;
+    private final Map<PatternRelationship, Integer> relationshipOrdinals;
+
+    private final Map<PatternGroup, FilterExpression[]> groupFilters;
+    private final CompiledFilter[][] postFilters;
+    private final int[][] postFilterGroups;
+    private final int[][] postFilterParts;
+    private final CompiledFilter[][] nodeFilters;
+
+    private final ExpansionPlan plan;
+    private final ExpansionPlan[] optionalPlans;
+    private final boolean countableTree;
+
+    CompiledPattern( PatternNode start, Map<String, PatternNode> objectVariables,
+        Collection<PatternNode> optional )
+    {
+        List<PatternNode> nodeList = new ArrayList<PatternNode>();
+        List<PatternRelationship> relList = new ArrayList<PatternRelationship>();
+        Map<PatternNode, Integer> nodeMap = new HashMap<PatternNode, Integer>();
+        Map<PatternRelationship, Integer> relMap =
+            new HashMap<PatternRelationship, Integer>();
+        collect( start, nodeList, nodeMap, relList, relMap );
+        if ( optional != null )
+        {
+            for ( PatternNode optionalNode : optional )
+            {
+                collect( optionalNode, nodeList, nodeMap, relList, relMap );
+            }
+        }
+
+        this.nodes = nodeList.toArray( new PatternNode[ nodeList.size() ] );
+        this.nodeAssociations = new Node[ nodes.length ];
+        this.nodeConstraints = new PropertyConstraints[ nodes.length ];
+        this.requiredRelationships = new int[ nodes.length ][];
+        this.optionalRelationships = new int[ nodes.length ][];
+        Map<PatternGroup, FilterExpression[]> filters =
+            new HashMap<PatternGroup, FilterExpression[]>();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            PatternNode node = nodes[ i ];
+            nodeAssociations[ i ] = node.getAssociation();
+            nodeConstraints[ i ] = new PropertyConstraints( node );
+            requiredRelationships[ i ] = ordinals(
+                node.getRelationships( false ), relMap );
+            optionalRelationships[ i ] = ordinals(
+                node.getRelationships( true ), relMap );
+            PatternGroup group = node.getGroup();
+            if ( group != null && !filters.containsKey( group ) )
+            {
+                filters.put( group, group.getFilters() );
+            }
+        }
+        this.groupFilters = filters;
+        this.nodeOrdinals = nodeMap;
+        this.nodeLabels = new int[ nodes.length ];
+        Map<String, Integer> labelMap = new HashMap<String, Integer>();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            Integer label = labelMap.get( nodes[ i ].getLabel() );
+            if ( label == null )
+            {
+                label = labelMap.size();
+                labelMap.put( nodes[ i ].getLabel(), label );
+            }
+            nodeLabels[ i ] = label;
+        }
+        this.labelledNodes = new int[ labelMap.size() ][];
+        int[] labelCounts = new int[ labelMap.size() ];
+        for ( int label : nodeLabels )
+        {
+            labelCounts[ label ]++;
+        }
+        for ( int label = 0; label < labelledNodes.length; label++ )
+        {
+            labelledNodes[ label ] = new int[ labelCounts[ label ] ];
+            labelCounts[ label ] = 0;
+        }
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            labelledNodes[ nodeLabels[ i ] ][ labelCounts[ nodeLabels[ i ] ]++ ] = i;
+        }
+
+        this.relationships = relList.toArray(
+            new PatternRelationship[ relList.size() ] );
+        this.relationshipAssociations = new Relationship[ relationships.length ];
+        this.relationshipConstraints =
+            new PropertyConstraints[ relationships.length ];
+        this.relationshipOrdinals = relMap;
+        this.firstNodes = new int[ relationships.length ];
+        this.secondNodes = new int[ relationships.length ];
+        for ( int i = 0; i < relationships.length; i++ )
+        {
+            PatternRelationship rel = relationships[ i ];
+            relationshipAssociations[ i ] = rel.getAssociation();
+            relationshipConstraints[ i ] = new PropertyConstraints( rel );
+            firstNodes[ i ] = nodeMap.get( rel.getFirstNode() );
+            secondNodes[ i ] = nodeMap.get( rel.getSecondNode() );
+        }
+
+        this.startNode = nodeMap.get( start );
+        if ( optional == null )
+        {
+            this.optionalStartNodes = NO_RELATIONSHIPS;
+        }
+        else
+        {
+            this.optionalStartNodes = new int[ optional.size() ];
+            int counter = 0;
+            for ( PatternNode optionalNode : optional )
+            {
+                optionalStartNodes[ counter++ ] = nodeMap.get( optionalNode );
+            }
+        }
+        this.objectVariables = objectVariables == null ? null :
+            Collections.unmodifiableMap(
+                new HashMap<String, PatternNode>( objectVariables ) );
+
+        this.plan = new ExpansionPlan( this, startNode, false );
+        this.optionalPlans = new ExpansionPlan[ optionalStartNodes.length ];
+        for ( int i = 0; i < optionalStartNodes.length; i++ )
+        {
+            optionalPlans[ i ] = new ExpansionPlan( this,
+                optionalStartNodes[ i ], true );
+        }
+
+        List<CompiledFilter[]> post = new ArrayList<CompiledFilter[]>();
+        List<int[]> postGroups = new ArrayList<int[]>();
+        List<int[]> postParts = new ArrayList<int[]>();
+        this.nodeFilters = new CompiledFilter[ nodes.length ][];
+        pushDownFilters( post, postGroups, postParts );
+        this.postFilters = post.toArray( new CompiledFilter[ post.size() ][] );
+        this.postFilterGroups = postGroups.toArray(
+            new int[ postGroups.size() ][] );
+        this.postFilterParts = postParts.toArray(
+            new int[ postParts.size() ][] );
+        this.countableTree = TreeCounter.canCount( this );
+    }
+
+    /**
+     * Compiles the filters of each group, and splits them into the ones
+     * which only read properties of one pattern node in the group, bound by
+     * the required part of the pattern, which are moved to
+     * {@link #nodeFilters}, and the rest, which are added to {@code post},
+     * with the ordinals of the pattern nodes of the group in
+     * {@code postGroups} and the part of the pattern each filter reads in
+     * {@code postParts}. A filter on a pattern node of an optional part
+     * isn't pushed down, since rejecting the node there would only leave
+     * the optional part out rather than reject the whole match. Filters are
+     * only evaluated if there are object variables to look the pattern
+     * nodes up by.
+     */
+    private void pushDownFilters( List<CompiledFilter[]> post,
+        List<int[]> postGroups, List<int[]> postParts )
+    {
+        List<List<CompiledFilter>> pushed = new ArrayList<List<CompiledFilter>>();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            pushed.add( new ArrayList<CompiledFilter>() );
+        }
+        if ( objectVariables != null )
+        {
+            for ( Map.Entry<PatternGroup, FilterExpression[]> entry :
+                groupFilters.entrySet() )
+            {
+                Map<String, String> labelToProperty =
+                    new HashMap<String, String>();
+                for ( FilterExpression expression : entry.getValue() )
+                {
+                    mapProperties( expression, labelToProperty );
+                }
+                List<CompiledFilter> remaining = new ArrayList<CompiledFilter>();
+                List<Integer> parts = new ArrayList<Integer>();
+                for ( FilterExpression expression : entry.getValue() )
+                {
+                    CompiledFilter filter = new CompiledFilter( this,
+                        expression, objectVariables, labelToProperty );
+                    Set<String> labels = new HashSet<String>();
+                    boolean known = labels( expression, labels );
+                    int node = known && labels.size() == 1 ? ordinalOf(
+                        objectVariables.get( labels.iterator().next() ) ) : -1;
+                    if ( node != -1 && plan.binds( node ) &&
+                        nodes[ node ].getGroup() == entry.getKey() )
+                    {
+                        pushed.get( node ).add( filter );
+                    }
+                    else
+                    {
+                        remaining.add( filter );
+                        parts.add( known ? partOf( labels ) : REQUIRED_PART );
+                    }
+                }
+                if ( !remaining.isEmpty() )
+                {
+                    post.add( remaining.toArray(
+                        new CompiledFilter[ remaining.size() ] ) );
+                    postGroups.add( nodesInGroup( entry.getKey() ) );
+                    int[] partArray = new int[ parts.size() ];
+                    for ( int i = 0; i < partArray.length; i++ )
+                    {
+                        partArray[ i ] = parts.get( i );
+                    }
+                    postParts.add( partArray );
+                }
+            }
+        }
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodeFilters[ i ] = pushed.get( i ).toArray(
+                new CompiledFilter[ pushed.get( i ).size() ] );
+        }
+    }
+
+    /**
+     * @return the part of the pattern which binds the pattern nodes of the
+     * object variables {@code labels}: {@link #REQUIRED_PART} if they all
+     * are bound by the required part, the index of the one optional part
+     * which binds the others, or {@link #SEVERAL_PARTS}.
+     */
+    private int partOf( Set<String> labels )
+    {
+        int part = REQUIRED_PART;
+        for ( String label : labels )
+        {
+            PatternNode patternNode = objectVariables.get( label );
+            int node = patternNode != null ? ordinalOf( patternNode ) : -1;
+            if ( node == -1 || plan.binds( node ) )
+            {
+                continue;
+            }
+            for ( int i = 0; i < optionalPlans.length; i++ )
+            {
+                if ( !optionalPlans[ i ].binds( node ) )
+                {
+                    continue;
+                }
+                if ( part == REQUIRED_PART )
+                {
+                    part = i;
+                }
+                else if ( part != i )
+                {
+                    return SEVERAL_PARTS;
+                }
+            }
+        }
+        return part;
+    }
+
+    private int[] nodesInGroup( PatternGroup group )
+    {
+        int count = 0;
+        for ( PatternNode node : nodes )
+        {
+            count += node.getGroup() == group ? 1 : 0;
+        }
+        int[] result = new int[ count ];
+        count = 0;
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            if ( nodes[ i ].getGroup() == group )
+            {
+                result[ count++ ] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The same mapping from labels to property keys as the one the filters
+     * of a group are evaluated with on complete matches.
+     */
+    private static void mapProperties( FilterExpression expression,
+        Map<String, String> labelToProperty )
+    {
+        if ( expression instanceof FilterBinaryNode )
+        {
+            FilterBinaryNode node = ( FilterBinaryNode ) expression;
+            mapProperties( node.getLeftExpression(), labelToProperty );
+            mapProperties( node.getRightExpression(), labelToProperty );
+        }
+        else if ( expression instanceof AbstractFilterExpression )
+        {
+            AbstractFilterExpression leaf =
+                ( AbstractFilterExpression ) expression;
+            labelToProperty.put( leaf.getLabel(), leaf.getProperty() );
+        }
+    }
+
+    /**
+     * Collects the labels {@code expression} reads.
+     *
+     * @return {@code false} if the expression isn't made up of known
+     * expressions only, so that the labels it reads aren't known.
+     */
+    private static boolean labels( FilterExpression expression,
+        Set<String> labels )
+    {
+        if ( expression instanceof FilterBinaryNode )
+        {
+            FilterBinaryNode node = ( FilterBinaryNode ) expression;
+            return labels( node.getLeftExpression(), labels ) &&
+                labels( node.getRightExpression(), labels );
+        }
+        else if ( expression instanceof AbstractFilterExpression )
+        {
+            labels.add( ( ( AbstractFilterExpression ) expression ).getLabel() );
+            return true;
+        }
+        return false;
+    }
+
+    private static void collect( PatternNode root, List<PatternNode> nodeList,
+        Map<PatternNode, Integer> nodeMap, List<PatternRelationship> relList,
+        Map<PatternRelationship, Integer> relMap )
+    {
+        if ( nodeMap.containsKey( root ) )
+        {
+            return;
+        }
+        LinkedList<PatternNode> queue = new LinkedList<PatternNode>();
+        nodeMap.put( root, nodeList.size() );
+        nodeList.add( root );
+        queue.add( root );
+        while ( !queue.isEmpty() )
+        {
+            PatternNode node = queue.removeFirst();
+            for ( PatternRelationship rel : node.getAllRelationships() )
+            {
+                if ( !relMap.containsKey( rel ) )
+                {
+                    relMap.put( rel, relList.size() );
+                    relList.add( rel );
+                }
+                PatternNode other = rel.getOtherNode( node );
+                if ( !nodeMap.containsKey( other ) )
+                {
+                    nodeMap.put( other, nodeList.size() );
+                    nodeList.add( other );
+                    queue.add( other );
+                }
+            }
+        }
+    }
+
+    private static int[] ordinals( Iterable<PatternRelationship> rels,
+        Map<PatternRelationship, Integer> relMap )
+    {
+        List<Integer> result = new ArrayList<Integer>();
+        for ( PatternRelationship rel : rels )
+        {
+            result.add( relMap.get( rel ) );
+        }
+        if ( result.isEmpty() )
+        {
+            return NO_RELATIONSHIPS;
+        }
+        int[] array = new int[ result.size() ];
+        for ( int i = 0; i < array.length; i++ )
+        {
+            array[ i ] = result.get( i );
+        }
+        return array;
+    }
+
+    /**
+     * Get the {@link PatternNode} this pattern was compiled from, i.e. the
+     * pattern node that starts matching at the start node.
+     *
+     * @return the start {@link PatternNode}.
+     */
+    public PatternNode getStartPatternNode()
+    {
+        return nodes[ startNode ];
+    }
+
+    /**
+     * Get the {@link Node} the start pattern node was associated with when
+     * this pattern was compiled, or {@code null} if it wasn't associated.
+     *
+     * @return the associated start {@link Node}, or {@code null}.
+     */
+    public Node getStartNodeAssociation()
+    {
+        return nodeAssociations[ startNode ];
+    }
+
+    /**
+     * Whether the matches of this pattern can be returned in factorized
+     * form, see {@link PatternMatcher#matchFactorized(CompiledPattern, Node)}.
+     * That requires a tree shaped pattern without optional parts or
+     * post-match filters, where every pattern relationship has a type of its
+     * own so that the branches of the tree can't compete for the same
+     * relationships.
+     *
+     * @return whether the matches of this pattern can be factorized.
+     */
+    public boolean isFactorizable()
+    {
+        return countableTree;
+    }
+
+    int[] optionalStartNodes()
+    {
+        return optionalStartNodes;
+    }
+
+    boolean hasOptional()
+    {
+        return optionalStartNodes.length > 0;
+    }
+
+    /**
+     * @return the {@link ExpansionPlan} for the start pattern node.
+     */
+    ExpansionPlan plan()
+    {
+        return plan;
+    }
+
+    /**
+     * @param index the index of an optional start node, in the order they
+     * were given when compiling.
+     * @return the {@link ExpansionPlan} for that optional start node.
+     */
+    ExpansionPlan optionalPlan( int index )
+    {
+        return optionalPlans[ index ];
+    }
+
+    /**
+     * @return whether the matches of this pattern can be counted by a
+     * {@link TreeCounter}.
+     */
+    boolean isCountableTree()
+    {
+        return countableTree;
+    }
+
+    Map<String, PatternNode> objectVariables()
+    {
+        return objectVariables;
+    }
+
+    int nodeCount()
+    {
+        return nodes.length;
+    }
+
+    int relationshipCount()
+    {
+        return relationships.length;
+    }
+
+    PatternNode node( int ordinal )
+    {
+        return nodes[ ordinal ];
+    }
+
+    /**
+     * @return the number of distinct labels of the pattern nodes.
+     */
+    int labelCount()
+    {
+        return labelledNodes.length;
+    }
+
+    /**
+     * @return the ordinal of the label of {@code node}, pattern nodes with
+     * equal labels have the same label ordinal.
+     */
+    int labelOf( int node )
+    {
+        return nodeLabels[ node ];
+    }
+
+    /**
+     * @return the ordinals of the pattern nodes with the label
+     * {@code label}, in ascending order.
+     */
+    int[] nodesLabelled( int label )
+    {
+        return labelledNodes[ label ];
+    }
+
+    int ordinalOf( PatternNode node )
+    {
+        Integer ordinal = nodeOrdinals.get( node );
+        return ordinal != null ? ordinal : -1;
+    }
+
+    int ordinalOf( PatternRelationship rel )
+    {
+        Integer ordinal = relationshipOrdinals.get( rel );
+        return ordinal != null ? ordinal : -1;
+    }
+
+    PatternRelationship relationship( int ordinal )
+    {
+        return relationships[ ordinal ];
+    }
+
+    int[] relationshipsOf( int node, boolean optional )
+    {
+        return optional ? optionalRelationships[ node ] :
+            requiredRelationships[ node ];
+    }
+
+    int firstNode( int rel )
+    {
+        return firstNodes[ rel ];
+    }
+
+    int secondNode( int rel )
+    {
+        return secondNodes[ rel ];
+    }
+
+    int otherNode( int rel, int node )
+    {
+        return firstNodes[ rel ] == node ? secondNodes[ rel ] : firstNodes[ rel ];
+    }
+
+    RelationshipType type( int rel )
+    {
+        return relationships[ rel ].getType();
+    }
+
+    Direction directionFrom( int rel, int node )
+    {
+        return relationships[ rel ].getDirectionFrom( nodes[ node ] );
+    }
+
+    boolean isAssociated( int node )
+    {
+        return nodeAssociations[ node ] != null;
+    }
+
+    boolean isRelationshipAssociated( int rel )
+    {
+        return relationshipAssociations[ rel ] != null;
+    }
+
+    int nodeConstraintCount( int node )
+    {
+        return nodeConstraints[ node ].size();
+    }
+
+    /**
+     * @return whether matching a graph node to {@code node} reads anything
+     * from the graph node, i.e. {@code node} has property constraints or
+     * FILTER expressions pushed down to it.
+     */
+    boolean hasNodeChecks( int node )
+    {
+        return nodeConstraints[ node ].size() > 0 ||
+            nodeFilters[ node ].length > 0;
+    }
+
+    int relationshipConstraintCount( int rel )
+    {
+        return relationshipConstraints[ rel ].size();
+    }
+
+    /**
+     * @return the estimated fraction of graph nodes which pass the property
+     * constraints of {@code node}, see
+     * {@link CommonValueMatchers#selectivity(ValueMatcher)}.
+     */
+    double nodeSelectivity( int node )
+    {
+        return nodeConstraints[ node ].selectivity();
+    }
+
+    /**
+     * @return the estimated fraction of graph relationships which pass the
+     * property constraints of {@code rel}.
+     */
+    double relationshipSelectivity( int rel )
+    {
+        return relationshipConstraints[ rel ].selectivity();
+    }
+
+    boolean nodeMatches( int node, Node graphNode )
+    {
+        return nodeMatches( node, graphNode, null, null );
+    }
+
+    /**
+     * @param feedback the state of the execution to re-rank the property
+     * constraints with, or {@code null} to keep the compiled order.
+     * @param properties the property values read by the execution, or
+     * {@code null} to read them from the node.
+     */
+    boolean nodeMatches( int node, Node graphNode,
+        ConstraintFeedback feedback, PropertyCache properties )
+    {
+        Node association = nodeAssociations[ node ];
+        if ( association != null && !graphNode.equals( association ) )
+        {
+            return false;
+        }
+        PropertyConstraints constraints = nodeConstraints[ node ];
+        boolean matches = feedback == null || constraints.size() < 2 ?
+            constraints.matches( graphNode, properties ) :
+            constraints.matches( graphNode, feedback.forNode( node ),
+                properties );
+        return matches && filtersMatch( node, graphNode );
+    }
+
+    private boolean filtersMatch( int node, Node graphNode )
+    {
+        for ( CompiledFilter filter : nodeFilters[ node ] )
+        {
+            if ( !filter.matches( graphNode ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean relationshipMatches( int rel, Relationship graphRel )
+    {
+        return relationshipMatches( rel, graphRel, null );
+    }
+
+    /**
+     * @param feedback the state of the execution to re-rank the property
+     * constraints with, or {@code null} to keep the compiled order.
+     */
+    boolean relationshipMatches( int rel, Relationship graphRel,
+        ConstraintFeedback feedback )
+    {
+        Relationship association = relationshipAssociations[ rel ];
+        if ( association != null && !graphRel.equals( association ) )
+        {
+            return false;
+        }
+        PropertyConstraints constraints = relationshipConstraints[ rel ];
+        if ( feedback == null || constraints.size() < 2 )
+        {
+            return constraints.matches( graphRel, null );
+        }
+        return constraints.matches( graphRel,
+            feedback.forRelationship( rel ), null );
+    }
+
+    /**
+     * @return new state for one execution to re-rank the property
+     * constraints of this pattern with.
+     */
+    ConstraintFeedback newConstraintFeedback()
+    {
+        return new ConstraintFeedback( this );
+    }
+
+    /**
+     * @return whether there are filters to evaluate on complete matches.
+     */
+    boolean hasPostFilters()
+    {
+        return postFilters.length > 0;
+    }
+
+    /**
+     * @return whether {@code match} passes the filters which have to be
+     * evaluated on complete matches, of the groups which have pattern nodes
+     * bound in {@code match}.
+     */
+    boolean postFiltersMatch( PatternMatch match )
+    {
+        return postFiltersMatch( match, false, 0 );
+    }
+
+    /**
+     * @return whether the match {@code match} of the required part passes
+     * the filters which have to be evaluated on complete matches and only
+     * read pattern nodes of the required part.
+     */
+    boolean requiredFiltersMatch( PatternMatch match )
+    {
+        return postFiltersMatch( match, true, REQUIRED_PART );
+    }
+
+    /**
+     * @return whether {@code match}, a match of the required part merged
+     * with a match of the optional part {@code index}, passes the filters
+     * which have to be evaluated on complete matches and read pattern nodes
+     * of that optional part, and no other.
+     */
+    boolean optionalFiltersMatch( int index, PatternMatch match )
+    {
+        return postFiltersMatch( match, true, index );
+    }
+
+    private boolean postFiltersMatch( PatternMatch match, boolean onePart,
+        int part )
+    {
+        for ( int group = 0; group < postFilters.length; group++ )
+        {
+            if ( !anyBound( match, postFilterGroups[ group ] ) )
+            {
+                continue;
+            }
+            for ( int i = 0; i < postFilters[ group ].length; i++ )
+            {
+                if ( onePart && postFilterParts[ group ][ i ] != part )
+                {
+                    continue;
+                }
+                if ( !postFilters[ group ][ i ].matches( match ) )
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyBound( PatternMatch match, int[] nodes )
+    {
+        for ( int node : nodes )
+        {
+            if ( match.nodeAt( node ) != null )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The property constraints of one pattern object, copied out of the
+     * (mutable) pattern object at compile time. The keys are ordered by the
+     * estimated cost and selectivity of their matchers, the ones expected to
+     * reject most cheaply first, and so are the matchers of each key, which
+     * are compiled into one {@link PropertyCheck} per key.
+     */
+    private static class PropertyConstraints
+    {
+        private final String[] keys;
+        private final PropertyCheck[] checks;
+        private final int[] costs;
+        private final double selectivity;
+
+        PropertyConstraints(
+            AbstractPatternObject<? extends PropertyContainer> patternObject )
+        {
+            List<String> keyList = new ArrayList<String>();
+            final List<ValueMatcher[]> matcherList =
+                new ArrayList<ValueMatcher[]>();
+            final List<Integer> costList = new ArrayList<Integer>();
+            final List<Double> rankList = new ArrayList<Double>();
+            double allKeys = 1;
+            for ( Map.Entry<String, Collection<ValueMatcher>> entry :
+                patternObject.getPropertyConstraints() )
+            {
+                List<ValueMatcher> keyMatchers =
+                    new ArrayList<ValueMatcher>( entry.getValue() );
+                Collections.sort( keyMatchers, new Comparator<ValueMatcher>()
+                {
+                    public int compare( ValueMatcher o1, ValueMatcher o2 )
+                    {
+                        return Double.compare( rank( o1 ), rank( o2 ) );
+                    }
+                } );
+                int cost = 0;
+                double selectivity = 1;
+                for ( ValueMatcher matcher : keyMatchers )
+                {
+                    cost += CommonValueMatchers.cost( matcher );
+                    selectivity *= CommonValueMatchers.selectivity( matcher );
+                }
+                keyList.add( entry.getKey() );
+                matcherList.add( keyMatchers.toArray(
+                    new ValueMatcher[ keyMatchers.size() ] ) );
+                costList.add( cost );
+                rankList.add( CommonValueMatchers.rank( cost, selectivity ) );
+                allKeys *= selectivity;
+            }
+            this.selectivity = allKeys;
+            List<Integer> order = new ArrayList<Integer>();
+            for ( int i = 0; i < keyList.size(); i++ )
+            {
+                order.add( i );
+            }
+            Collections.sort( order, new Comparator<Integer>()
+            {
+                public int compare( Integer o1, Integer o2 )
+                {
+                    return Double.compare( rankList.get( o1 ),
+                        rankList.get( o2 ) );
+                }
+            } );
+            this.keys = new String[ order.size() ];
+            this.checks = new PropertyCheck[ order.size() ];
+            this.costs = new int[ order.size() ];
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                keys[ i ] = keyList.get( order.get( i ) );
+                checks[ i ] = PropertyCheck.compile(
+                    matcherList.get( order.get( i ) ) );
+                costs[ i ] = costList.get( order.get( i ) );
+            }
+        }
+
+        private static double rank( ValueMatcher matcher )
+        {
+            return CommonValueMatchers.rank( CommonValueMatchers.cost( matcher ),
+                CommonValueMatchers.selectivity( matcher ) );
+        }
+
+        int size()
+        {
+            return keys.length;
+        }
+
+        double selectivity()
+        {
+            return selectivity;
+        }
+
+        boolean matches( PropertyContainer object, PropertyCache properties )
+        {
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                if ( !matches( object, i, properties ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches( PropertyContainer object, Ranking ranking,
+            PropertyCache properties )
+        {
+            int[] order = ranking.order;
+            for ( int position = 0; position < order.length; position++ )
+            {
+                int key = order[ position ];
+                ranking.evaluated[ key ]++;
+                if ( !matches( object, key, properties ) )
+                {
+                    ranking.rejected[ key ]++;
+                    ranking.promote( position, costs );
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches( PropertyContainer object, int key,
+            PropertyCache properties )
+        {
+            Object propertyValue = properties != null ?
+                properties.getProperty( ( Node ) object, keys[ key ] ) :
+                object.getProperty( keys[ key ], null );
+            return checks[ key ].matches( propertyValue );
+        }
+    }
+
+    /**
+     * The order one execution evaluates the property constraints of one
+     * pattern object in, and how often each of them has rejected.
+     */
+    private static class Ranking
+    {
+        private final int[] order;
+        private final long[] evaluated;
+        private final long[] rejected;
+
+        Ranking( int size )
+        {
+            this.order = new int[ size ];
+            for ( int i = 0; i < size; i++ )
+            {
+                order[ i ] = i;
+            }
+            this.evaluated = new long[ size ];
+            this.rejected = new long[ size ];
+        }
+
+        /**
+         * Moves the constraint at {@code position}, which just rejected,
+         * ahead of the one before it if it rejects more often per cost.
+         */
+        void promote( int position, int[] costs )
+        {
+            if ( position == 0 )
+            {
+                return;
+            }
+            int current = order[ position ];
+            int previous = order[ position - 1 ];
+            double currentScore = ( double ) rejected[ current ] /
+                evaluated[ current ] / costs[ current ];
+            double previousScore = ( double ) rejected[ previous ] /
+                evaluated[ previous ] / costs[ previous ];
+            if ( currentScore > previousScore )
+            {
+                order[ position ] = previous;
+                order[ position - 1 ] = current;
+            }
+        }
+    }
+
+    /**
+     * The re-ranking state of the property constraints for one execution of
+     * a pattern. A compiled pattern is shared between executions, so the
+     * feedback lives beside it rather than in it.
+     */
+    static final class ConstraintFeedback
+    {
+        private final CompiledPattern pattern;
+        private final Ranking[] nodes;
+        private final Ranking[] relationships;
+
+        private ConstraintFeedback( CompiledPattern pattern )
+        {
+            this.pattern = pattern;
+            this.nodes = new Ranking[ pattern.nodeCount() ];
+            this.relationships = new Ranking[ pattern.relationshipCount() ];
+        }
+
+        private Ranking forNode( int node )
+        {
+            if ( nodes[ node ] == null )
+            {
+                nodes[ node ] = new Ranking( pattern.nodeConstraintCount( node ) );
+            }
+            return nodes[ node ];
+        }
+
+        private Ranking forRelationship( int rel )
+        {
+            if ( relationships[ rel ] == null )
+            {
+                relationships[ rel ] = new Ranking(
+                    pattern.relationshipConstraintCount( rel ) );
+            }
+            return relationships[ rel ];
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * The order in which the {@link PatternFinder} expands the pattern
+ * relationships of a {@link CompiledPattern}, starting from one pattern node.
+ * Each step expands one pattern relationship from a pattern node which is
+ * already bound. If the pattern node at the other end is bound too the step
+ * closes a cycle and only checks that the relationship found leads back to
+ * that node.
+ *
+ * The order is picked greedily from estimated fan-out: cycle closing steps
+ * first, since they can only remove candidates, then the step expected to
+ * produce the fewest bindings. The estimates use what is known without
+ * looking at the graph: whether the relationship is typed and directed,
+ * whether the pattern objects are associated, and how selective the
+ * matchers of their property constraints are expected to be. Ties are
+ * broken by the order the pattern was built in.
+ *
+ * The plan also holds a degree signature for each pattern node: the least
+ * number of relationships of each type and direction a graph node must have
+ * to match it, given all the pattern relationships of the node in the plan.
+ * A candidate node can be rejected by counting its relationships, before
+ * the search expands from it. Requirements which the relationship a node is
+ * reached by already fulfills, or which follow from other requirements, are
+ * left out.
+ *
+ * When more than one step expands from the same pattern node, those steps
+ * share one read of the relationships of the bound graph node, see
+ * {@link RelationshipBuckets}.
+ */
+final class ExpansionPlan
+{
+    static final double TYPED_FAN_OUT = 10;
+    static final double ANY_TYPE_FAN_OUT = 40;
+
+    private final int root;
+    private final boolean optional;
+    private final int[] rels;
+    private final int[] fromNodes;
+    private final int[] toNodes;
+    private final boolean[] closing;
+    private final int[] reachedBy;
+    private final RelationshipType[] degreeTypes;
+    private final Direction[] degreeDirections;
+    private final int[] degreeCaps;
+    private final int[][] degreeKeys;
+    private final int[][] degreeCounts;
+    private final int[][] bucketedSteps;
+    private final int[] bucketIndexes;
+
+    ExpansionPlan( CompiledPattern pattern, int root, boolean optional )
+    {
+        this.root = root;
+        this.optional = optional;
+        int relCount = pattern.relationshipCount();
+        int[] stepRels = new int[ relCount ];
+        int[] stepFrom = new int[ relCount ];
+        int[] stepTo = new int[ relCount ];
+        boolean[] stepClosing = new boolean[ relCount ];
+        boolean[] used = new boolean[ relCount ];
+        boolean[] bound = new boolean[ pattern.nodeCount() ];
+        int[] boundOrder = new int[ pattern.nodeCount() ];
+        int boundCount = 0;
+        bound[ root ] = true;
+        boundOrder[ boundCount++ ] = root;
+        int steps = 0;
+        while ( true )
+        {
+            int bestRel = -1;
+            int bestFrom = -1;
+            double bestOutput = Double.MAX_VALUE;
+            double bestFanOut = Double.MAX_VALUE;
+            for ( int i = 0; i < boundCount; i++ )
+            {
+                int node = boundOrder[ i ];
+                for ( int rel : pattern.relationshipsOf( node, optional ) )
+                {
+                    if ( used[ rel ] )
+                    {
+                        continue;
+                    }
+                    int other = pattern.otherNode( rel, node );
+                    double fanOut = fanOut( pattern, rel, node );
+                    double output = bound[ other ] ? 0 :
+                        output( pattern, rel, other, fanOut );
+                    if ( output < bestOutput ||
+                        ( output == bestOutput && fanOut < bestFanOut ) )
+                    {
+                        bestRel = rel;
+                        bestFrom = node;
+                        bestOutput = output;
+                        bestFanOut = fanOut;
+                    }
+                }
+            }
+            if ( bestRel == -1 )
+            {
+                break;
+            }
+            int to = pattern.otherNode( bestRel, bestFrom );
+            used[ bestRel ] = true;
+            stepRels[ steps ] = bestRel;
+            stepFrom[ steps ] = bestFrom;
+            stepTo[ steps ] = to;
+            stepClosing[ steps ] = bound[ to ];
+            if ( !bound[ to ] )
+            {
+                bound[ to ] = true;
+                boundOrder[ boundCount++ ] = to;
+            }
+            steps++;
+        }
+        this.rels = copyOf( stepRels, steps );
+        this.fromNodes = copyOf( stepFrom, steps );
+        this.toNodes = copyOf( stepTo, steps );
+        this.closing = new boolean[ steps ];
+        System.arraycopy( stepClosing, 0, closing, 0, steps );
+        this.reachedBy = new int[ pattern.nodeCount() ];
+        Arrays.fill( reachedBy, -1 );
+        for ( int step = 0; step < steps; step++ )
+        {
+            if ( !closing[ step ] )
+            {
+                reachedBy[ toNodes[ step ] ] = rels[ step ];
+            }
+        }
+
+        this.bucketedSteps = new int[ pattern.nodeCount() ][];
+        this.bucketIndexes = new int[ steps ];
+        Arrays.fill( bucketIndexes, -1 );
+        int[] expandingSteps = new int[ pattern.nodeCount() ];
+        for ( int step = 0; step < steps; step++ )
+        {
+            if ( !closing[ step ] )
+            {
+                expandingSteps[ fromNodes[ step ] ]++;
+            }
+        }
+        int[] bucketCounts = new int[ pattern.nodeCount() ];
+        for ( int step = 0; step < steps; step++ )
+        {
+            int from = fromNodes[ step ];
+            if ( closing[ step ] || expandingSteps[ from ] < 2 )
+            {
+                continue;
+            }
+            if ( bucketedSteps[ from ] == null )
+            {
+                bucketedSteps[ from ] = new int[ expandingSteps[ from ] ];
+            }
+            bucketIndexes[ step ] = bucketCounts[ from ];
+            bucketedSteps[ from ][ bucketCounts[ from ]++ ] = step;
+        }
+
+        List<RelationshipType> keyTypes = new ArrayList<RelationshipType>();
+        List<Direction> keyDirections = new ArrayList<Direction>();
+        List<Integer> keyCaps = new ArrayList<Integer>();
+        Map<String, Integer> keyIndexes = new HashMap<String, Integer>();
+        this.degreeKeys = new int[ pattern.nodeCount() ][];
+        this.degreeCounts = new int[ pattern.nodeCount() ][];
+        for ( int node = 0; node < pattern.nodeCount(); node++ )
+        {
+            if ( node != root && reachedBy[ node ] == -1 )
+            {
+                continue;
+            }
+            List<DegreeRequirement> requirements =
+                degreeRequirements( pattern, node );
+            if ( requirements.isEmpty() )
+            {
+                continue;
+            }
+            degreeKeys[ node ] = new int[ requirements.size() ];
+            degreeCounts[ node ] = new int[ requirements.size() ];
+            for ( int i = 0; i < requirements.size(); i++ )
+            {
+                DegreeRequirement requirement = requirements.get( i );
+                Integer key = keyIndexes.get( requirement.key() );
+                if ( key == null )
+                {
+                    key = keyTypes.size();
+                    keyIndexes.put( requirement.key(), key );
+                    keyTypes.add( requirement.type );
+                    keyDirections.add( requirement.direction );
+                    keyCaps.add( 0 );
+                }
+                keyCaps.set( key, Math.max( keyCaps.get( key ),
+                    requirement.count ) );
+                degreeKeys[ node ][ i ] = key;
+                degreeCounts[ node ][ i ] = requirement.count;
+            }
+        }
+        this.degreeTypes = keyTypes.toArray(
+            new RelationshipType[ keyTypes.size() ] );
+        this.degreeDirections = keyDirections.toArray(
+            new Direction[ keyDirections.size() ] );
+        this.degreeCaps = new int[ keyCaps.size() ];
+        for ( int i = 0; i < degreeCaps.length; i++ )
+        {
+            degreeCaps[ i ] = keyCaps.get( i );
+        }
+    }
+
+    private List<DegreeRequirement> degreeRequirements(
+        CompiledPattern pattern, int node )
+    {
+        List<DegreeRequirement> all = new ArrayList<DegreeRequirement>();
+        Map<String, DegreeRequirement> byKey =
+            new HashMap<String, DegreeRequirement>();
+        for ( int rel : rels )
+        {
+            int other = pattern.otherNode( rel, node );
+            if ( other == node || pattern.otherNode( rel, other ) != node )
+            {
+                // Not a relationship of this node, or a loop
+                continue;
+            }
+            RelationshipType type = pattern.type( rel );
+            Direction direction = pattern.directionFrom( rel, node );
+            boolean arrival = reachedBy[ node ] == rel;
+            if ( type != null )
+            {
+                if ( direction != Direction.BOTH )
+                {
+                    require( all, byKey, type, direction, arrival );
+                }
+                require( all, byKey, type, Direction.BOTH, arrival );
+            }
+            if ( direction != Direction.BOTH )
+            {
+                require( all, byKey, null, direction, arrival );
+            }
+            require( all, byKey, null, Direction.BOTH, arrival );
+        }
+
+        List<DegreeRequirement> result = new ArrayList<DegreeRequirement>();
+        for ( DegreeRequirement requirement : all )
+        {
+            if ( requirement.count == 1 && requirement.includesArrival )
+            {
+                continue;
+            }
+            boolean implied = false;
+            for ( DegreeRequirement other : all )
+            {
+                if ( other != requirement && requirement.covers( other ) &&
+                    other.count >= requirement.count )
+                {
+                    implied = true;
+                    break;
+                }
+            }
+            if ( !implied )
+            {
+                result.add( requirement );
+            }
+        }
+        return result;
+    }
+
+    private static void require( List<DegreeRequirement> all,
+        Map<String, DegreeRequirement> byKey, RelationshipType type,
+        Direction direction, boolean arrival )
+    {
+        DegreeRequirement requirement = new DegreeRequirement( type, direction );
+        DegreeRequirement existing = byKey.get( requirement.key() );
+        if ( existing == null )
+        {
+            byKey.put( requirement.key(), requirement );
+            all.add( requirement );
+            existing = requirement;
+        }
+        existing.count++;
+        existing.includesArrival |= arrival;
+    }
+
+    private static int[] copyOf( int[] array, int length )
+    {
+        int[] result = new int[ length ];
+        System.arraycopy( array, 0, result, 0, length );
+        return result;
+    }
+
+    /**
+     * The estimated number of relationships iterated when expanding
+     * {@code rel} from {@code from}.
+     */
+    private static double fanOut( CompiledPattern pattern, int rel, int from )
+    {
+        double fanOut = pattern.type( rel ) == null ? ANY_TYPE_FAN_OUT :
+            TYPED_FAN_OUT;
+        if ( pattern.directionFrom( rel, from ) == Direction.BOTH )
+        {
+            fanOut *= 2;
+        }
+        return fanOut;
+    }
+
+    /**
+     * The estimated number of bindings that survives when expanding
+     * {@code rel} to the unbound pattern node {@code to}, given the
+     * estimated selectivity of the matchers of each constrained property
+     * key.
+     */
+    private static double output( CompiledPattern pattern, int rel, int to,
+        double fanOut )
+    {
+        double output = fanOut;
+        output *= pattern.relationshipSelectivity( rel );
+        output *= pattern.nodeSelectivity( to );
+        if ( pattern.isAssociated( to ) || pattern.isRelationshipAssociated( rel ) )
+        {
+            output = Math.min( output, 1 );
+        }
+        return output;
+    }
+
+    int root()
+    {
+        return root;
+    }
+
+    boolean isOptional()
+    {
+        return optional;
+    }
+
+    int length()
+    {
+        return rels.length;
+    }
+
+    int relationship( int step )
+    {
+        return rels[ step ];
+    }
+
+    int from( int step )
+    {
+        return fromNodes[ step ];
+    }
+
+    int to( int step )
+    {
+        return toNodes[ step ];
+    }
+
+    boolean isClosing( int step )
+    {
+        return closing[ step ];
+    }
+
+    /**
+     * @return the pattern relationship ordinal each pattern node ordinal is
+     * first reached by in this plan, or {@code -1} for the root and for the
+     * pattern nodes not in this plan. The array is shared, don't modify it.
+     */
+    int[] reachedBy()
+    {
+        return reachedBy;
+    }
+
+    /**
+     * @return whether {@code node} is the root of this plan or bound by one
+     * of its steps.
+     */
+    boolean binds( int node )
+    {
+        return node == root || reachedBy[ node ] != -1;
+    }
+
+    /**
+     * @return the steps expanding from {@code node} which share one read of
+     * its relationships, or {@code null} if there are less than two such
+     * steps.
+     */
+    int[] bucketedSteps( int node )
+    {
+        return bucketedSteps[ node ];
+    }
+
+    /**
+     * @return the index of {@code step} in the
+     * {@link #bucketedSteps(int) bucketed steps} of its from node, or
+     * {@code -1} if it reads the relationships on its own.
+     */
+    int bucketIndex( int step )
+    {
+        return bucketIndexes[ step ];
+    }
+
+    /**
+     * @return the number of distinct relationship type and direction
+     * combinations in the degree signatures of this plan.
+     */
+    int degreeKeyCount()
+    {
+        return degreeCaps.length;
+    }
+
+    /**
+     * @return the type of the relationships counted for {@code key}, or
+     * {@code null} for any type.
+     */
+    RelationshipType degreeType( int key )
+    {
+        return degreeTypes[ key ];
+    }
+
+    Direction degreeDirection( int key )
+    {
+        return degreeDirections[ key ];
+    }
+
+    /**
+     * @return the highest count any pattern node requires for {@code key},
+     * counting beyond it is never needed.
+     */
+    int degreeCap( int key )
+    {
+        return degreeCaps[ key ];
+    }
+
+    /**
+     * @return the degree keys required by {@code node}, or {@code null} if
+     * it has no degree signature.
+     */
+    int[] degreeKeys( int node )
+    {
+        return degreeKeys[ node ];
+    }
+
+    /**
+     * @return the counts required for the keys from
+     * {@link #degreeKeys(int)}.
+     */
+    int[] degreeCounts( int node )
+    {
+        return degreeCounts[ node ];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder( "ExpansionPlan[" + root );
+        for ( int step = 0; step < rels.length; step++ )
+        {
+            result.append( closing[ step ] ? ", (" : ", " );
+            result.append( fromNodes[ step ] ).append( "-" ).append(
+                rels[ step ] ).append( "-" ).append( toNodes[ step ] );
+            result.append( closing[ step ] ? ")" : "" );
+        }
+        return result.append( "]" ).toString();
+    }
+
+    /**
+     * A least number of relationships of a type, or of any type, and a
+     * direction which a graph node must have.
+     */
+    private static class DegreeRequirement
+    {
+        private final RelationshipType type;
+        private final Direction direction;
+        private int count;
+        private boolean includesArrival;
+
+        DegreeRequirement( RelationshipType type, Direction direction )
+        {
+            this.type = type;
+            this.direction = direction;
+        }
+
+        String key()
+        {
+            return type == null ? direction.name() :
+                direction.name() + " " + type.name();
+        }
+
+        /**
+         * @return whether every relationship counted by {@code other} is
+         * counted by this requirement too.
+         */
+        boolean covers( DegreeRequirement other )
+        {
+            return ( type == null || ( other.type != null &&
+                type.name().equals( other.type.name() ) ) ) &&
+                ( direction == Direction.BOTH || direction == other.direction );
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The matches of a tree shaped pattern below one pattern node, bound to one
+ * graph node, in factorized form. Instead of one {@link PatternMatch} for
+ * each combination of the matches of the independent branches below the
+ * pattern node, it holds one {@link Branch} per child pattern relationship,
+ * listing the relationships and the factorized matches of the child found
+ * through them. Its size is the sum of the branch sizes rather than their
+ * product, and a graph node reached through many paths is only represented
+ * once.
+ *
+ * Get one with {@link PatternMatcher#matchFactorized(CompiledPattern, Node)}
+ * and walk it, {@link #count()} it, or {@link #expand()} it into the same
+ * matches as {@link PatternMatcher#match(CompiledPattern, Node)} returns.
+ */
+public final class FactorizedMatch
+{
+    private final CompiledPattern pattern;
+    private final int patternNode;
+    private final Node node;
+    private final Branch[] branches;
+    private long count = -1;
+
+    private FactorizedMatch( CompiledPattern pattern, int patternNode,
+        Node node, Branch[] branches )
+    {
+        this.pattern = pattern;
+        this.patternNode = patternNode;
+        this.node = node;
+        this.branches = branches;
+    }
+
+    /**
+     * @return the {@link PatternNode} this is the matches below.
+     */
+    public PatternNode getPatternNode()
+    {
+        return pattern.node( patternNode );
+    }
+
+    /**
+     * @return the {@link Node} the pattern node is bound to.
+     */
+    public Node getNode()
+    {
+        return node;
+    }
+
+    /**
+     * @return one branch for each pattern relationship to a child of the
+     * pattern node, none if it is a leaf.
+     */
+    public List<Branch> getBranches()
+    {
+        return Collections.unmodifiableList( Arrays.asList( branches ) );
+    }
+
+    /**
+     * @return the number of matches this represents, i.e. the product of
+     * the summed counts of the branches.
+     */
+    public long count()
+    {
+        if ( count == -1 )
+        {
+            long product = 1;
+            for ( Branch branch : branches )
+            {
+                long sum = 0;
+                for ( FactorizedMatch match : branch.matches )
+                {
+                    sum += match.count();
+                }
+                product *= sum;
+            }
+            count = product;
+        }
+        return count;
+    }
+
+    /**
+     * Expands the matches this represents, lazily, into one
+     * {@link PatternMatch} each.
+     *
+     * @return the matches this represents.
+     */
+    public Iterable<PatternMatch> expand()
+    {
+        return new Iterable<PatternMatch>()
+        {
+            public Iterator<PatternMatch> iterator()
+            {
+                return new Expansion();
+            }
+        };
+    }
+
+    /**
+     * The alternatives for one child pattern relationship: each graph
+     * relationship matching it, and the factorized matches of the child
+     * pattern node at the graph node at its other end.
+     */
+    public static final class Branch
+    {
+        private final CompiledPattern pattern;
+        private final int patternRelationship;
+        private final Relationship[] relationships;
+        private final FactorizedMatch[] matches;
+
+        private Branch( CompiledPattern pattern, int patternRelationship,
+            List<Relationship> relationships, List<FactorizedMatch> matches )
+        {
+            this.pattern = pattern;
+            this.patternRelationship = patternRelationship;
+            this.relationships = relationships.toArray(
+                new Relationship[ relationships.size() ] );
+            this.matches = matches.toArray(
+                new FactorizedMatch[ matches.size() ] );
+        }
+
+        /**
+         * @return the pattern relationship to the child pattern node.
+         */
+        public PatternRelationship getPatternRelationship()
+        {
+            return pattern.relationship( patternRelationship );
+        }
+
+        /**
+         * @return the number of alternatives in this branch.
+         */
+        public int size()
+        {
+            return relationships.length;
+        }
+
+        /**
+         * @param index the index of an alternative.
+         * @return the relationship matching the pattern relationship.
+         */
+        public Relationship getRelationship( int index )
+        {
+            return relationships[ index ];
+        }
+
+        /**
+         * @param index the index of an alternative.
+         * @return the factorized matches of the child pattern node at the
+         * other end of the relationship.
+         */
+        public FactorizedMatch getMatch( int index )
+        {
+            return matches[ index ];
+        }
+    }
+
+    /**
+     * Builds the factorized matches of a pattern from a start node.
+     *
+     * @return the factorized matches, or {@code null} if there are none.
+     */
+    static FactorizedMatch build( CompiledPattern pattern, Node startNode )
+    {
+        if ( !pattern.nodeMatches( pattern.plan().root(), startNode ) )
+        {
+            return null;
+        }
+        return new Builder( pattern ).build( pattern.plan().root(),
+            startNode );
+    }
+
+    private static class Builder
+    {
+        private final CompiledPattern pattern;
+        private final ExpansionPlan plan;
+        private final Map<Long, FactorizedMatch>[] built;
+
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        Builder( CompiledPattern pattern )
+        {
+            this.pattern = pattern;
+            this.plan = pattern.plan();
+            this.built = new Map[ pattern.nodeCount() ];
+        }
+
+        /**
+         * @return the factorized matches below {@code node} at
+         * {@code graphNode}, which must match it, or {@code null} if a
+         * branch has no matches.
+         */
+        FactorizedMatch build( int node, Node graphNode )
+        {
+            if ( built[ node ] == null )
+            {
+                built[ node ] = new HashMap<Long, FactorizedMatch>();
+            }
+            Long id = graphNode.getId();
+            if ( built[ node ].containsKey( id ) )
+            {
+                return built[ node ].get( id );
+            }
+            List<Branch> branches = new ArrayList<Branch>();
+            for ( int step = 0; step < plan.length() && branches != null;
+                step++ )
+            {
+                if ( plan.from( step ) != node )
+                {
+                    continue;
+                }
+                int rel = plan.relationship( step );
+                int child = plan.to( step );
+                Direction direction = pattern.directionFrom( rel, node );
+                List<Relationship> rels = new ArrayList<Relationship>();
+                List<FactorizedMatch> matches = new ArrayList<FactorizedMatch>();
+                for ( Relationship graphRel : graphNode.getRelationships(
+                    pattern.type( rel ), direction ) )
+                {
+                    Node other = graphRel.getOtherNode( graphNode );
+                    if ( !pattern.relationshipMatches( rel, graphRel ) ||
+                        !pattern.nodeMatches( child, other ) )
+                    {
+                        continue;
+                    }
+                    FactorizedMatch match = build( child, other );
+                    if ( match != null )
+                    {
+                        rels.add( graphRel );
+                        matches.add( match );
+                    }
+                }
+                branches = rels.isEmpty() ? null : branches;
+                if ( branches != null )
+                {
+                    branches.add( new Branch( pattern, rel, rels, matches ) );
+                }
+            }
+            FactorizedMatch result = branches == null ? null :
+                new FactorizedMatch( pattern, node, graphNode,
+                    branches.toArray( new Branch[ branches.size() ] ) );
+            built[ node ].put( id, result );
+            return result;
+        }
+    }
+
+    /**
+     * Enumerates the combinations of the alternatives of all branches, like
+     * an odometer, by binding them into arrays indexed by the ordinals of
+     * the compiled pattern.
+     */
+    private class Expansion implements Iterator<PatternMatch>
+    {
+        private final Node[] nodes = new Node[ pattern.nodeCount() ];
+        private final Relationship[] rels =
+            new Relationship[ pattern.relationshipCount() ];
+        private final NodeCursor root = new NodeCursor( FactorizedMatch.this );
+        private boolean started = false;
+        private boolean ready = false;
+        private boolean exhausted = false;
+
+        public boolean hasNext()
+        {
+            if ( !ready && !exhausted )
+            {
+                if ( !started )
+                {
+                    started = true;
+                    root.first();
+                    ready = true;
+                }
+                else
+                {
+                    ready = root.next();
+                    exhausted = !ready;
+                }
+            }
+            return ready;
+        }
+
+        public PatternMatch next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return new PatternMatch( pattern, nodes.clone(), rels.clone(),
+                pattern.plan().reachedBy() );
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private class NodeCursor
+        {
+            private final FactorizedMatch match;
+            private final BranchCursor[] branchCursors;
+
+            NodeCursor( FactorizedMatch match )
+            {
+                this.match = match;
+                this.branchCursors = new BranchCursor[ match.branches.length ];
+                for ( int i = 0; i < branchCursors.length; i++ )
+                {
+                    branchCursors[ i ] = new BranchCursor( match.branches[ i ] );
+                }
+            }
+
+            void first()
+            {
+                nodes[ match.patternNode ] = match.node;
+                for ( BranchCursor cursor : branchCursors )
+                {
+                    cursor.first();
+                }
+            }
+
+            boolean next()
+            {
+                for ( int i = branchCursors.length - 1; i >= 0; i-- )
+                {
+                    if ( branchCursors[ i ].next() )
+                    {
+                        for ( int j = i + 1; j < branchCursors.length; j++ )
+                        {
+                            branchCursors[ j ].first();
+                        }
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        private class BranchCursor
+        {
+            private final Branch branch;
+            private int index;
+            private NodeCursor child;
+
+            BranchCursor( Branch branch )
+            {
+                this.branch = branch;
+            }
+
+            void first()
+            {
+                moveTo( 0 );
+            }
+
+            boolean next()
+            {
+                if ( child.next() )
+                {
+                    return true;
+                }
+                if ( index + 1 < branch.size() )
+                {
+                    moveTo( index + 1 );
+                    return true;
+                }
+                return false;
+            }
+
+            private void moveTo( int index )
+            {
+                this.index = index;
+                rels[ branch.patternRelationship ] =
+                    branch.relationships[ index ];
+                child = new NodeCursor( branch.matches[ index ] );
+                child.first();
+            }
+        }
+    }
+}
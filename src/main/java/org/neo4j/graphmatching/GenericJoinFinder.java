@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Finds the matches of the required part of a {@link CompiledPattern} by
+ * binding one pattern node at a time, rather than one pattern relationship
+ * at a time like {@link PatternFinder}. The candidates for a pattern node
+ * are the intersection of the neighbours of all the graph nodes bound to
+ * its already bound pattern neighbours, so a cyclic pattern like a triangle
+ * or a clique never enumerates the partial matches of a path through it
+ * that can't be closed. This is the generic join, with each neighbour set
+ * kept sorted by node id so that the sets can be intersected by leapfrogging
+ * through them.
+ *
+ * When all the pattern nodes are bound, the pattern relationships are bound
+ * to the graph relationships between their bound nodes, each graph
+ * relationship to at most one pattern relationship, the same as the
+ * {@link PatternFinder} does. The matches are therefore the same, but found
+ * in another order. The neighbour sets are cached by graph node for the
+ * rest of the search.
+ */
+class GenericJoinFinder extends AbstractPatternFinder
+{
+    /**
+     * The number of neighbour sets cached before the cache is cleared.
+     */
+    static final int MAX_CACHED_NEIGHBOURS = 4096;
+
+    private static final Object[] NO_CANDIDATES = new Object[ 0 ];
+
+    private final CompiledPattern pattern;
+    private final ExpansionPlan plan;
+    private final Node startNode;
+    private final int[] order;
+    private final int[][] joinRels;
+    private final int[][] joinAnchors;
+    private final int[] rels;
+    private final Node[] boundNodes;
+    private final Relationship[] boundRels;
+    private final Object[][] candidates;
+    private final int[] positions;
+    private final PrimitiveLongSet visitedRels;
+    private final CompiledPattern.ConstraintFeedback feedback;
+    private final PropertyCache properties =
+        new PropertyCache( PatternFinder.MAX_CACHED_PROPERTIES );
+    private final Map<NeighbourKey, NeighbourSet> neighbours =
+        new HashMap<NeighbourKey, NeighbourSet>();
+    private final NeighbourKey neighbourProbe = new NeighbourKey();
+    private boolean started = false;
+    private boolean exhausted = false;
+
+    GenericJoinFinder( PatternMatcher matcher, CompiledPattern pattern,
+        Node startNode )
+    {
+        super( matcher, pattern, pattern.hasOptional() );
+        this.pattern = pattern;
+        this.plan = pattern.plan();
+        this.startNode = startNode;
+        this.rels = new int[ plan.length() ];
+        for ( int step = 0; step < rels.length; step++ )
+        {
+            rels[ step ] = plan.relationship( step );
+        }
+        this.order = joinOrder();
+        this.joinRels = new int[ order.length ][];
+        this.joinAnchors = new int[ order.length ][];
+        boolean[] bound = new boolean[ pattern.nodeCount() ];
+        bound[ order[ 0 ] ] = true;
+        for ( int i = 1; i < order.length; i++ )
+        {
+            int node = order[ i ];
+            List<Integer> relList = new ArrayList<Integer>();
+            List<Integer> anchorList = new ArrayList<Integer>();
+            for ( int rel : rels )
+            {
+                int other = pattern.otherNode( rel, node );
+                if ( other != node && bound[ other ] &&
+                    pattern.otherNode( rel, other ) == node )
+                {
+                    relList.add( rel );
+                    anchorList.add( other );
+                }
+            }
+            joinRels[ i ] = toArray( relList );
+            joinAnchors[ i ] = toArray( anchorList );
+            bound[ node ] = true;
+        }
+        this.boundNodes = new Node[ pattern.nodeCount() ];
+        this.boundRels = new Relationship[ pattern.relationshipCount() ];
+        this.candidates = new Object[ order.length + rels.length ][];
+        this.positions = new int[ order.length + rels.length ];
+        this.visitedRels = new PrimitiveLongSet( rels.length );
+        this.feedback = pattern.newConstraintFeedback();
+    }
+
+    /**
+     * Orders the pattern nodes of the plan so that each one comes after as
+     * many of its pattern neighbours as possible, starting with the root.
+     */
+    private int[] joinOrder()
+    {
+        List<Integer> nodes = new ArrayList<Integer>();
+        nodes.add( plan.root() );
+        for ( int step = 0; step < plan.length(); step++ )
+        {
+            if ( !plan.isClosing( step ) )
+            {
+                nodes.add( plan.to( step ) );
+            }
+        }
+        int[] result = new int[ nodes.size() ];
+        boolean[] bound = new boolean[ pattern.nodeCount() ];
+        result[ 0 ] = plan.root();
+        bound[ plan.root() ] = true;
+        for ( int i = 1; i < result.length; i++ )
+        {
+            int best = -1;
+            int bestLinks = 0;
+            for ( int node : nodes )
+            {
+                if ( bound[ node ] )
+                {
+                    continue;
+                }
+                int links = 0;
+                for ( int rel : rels )
+                {
+                    int other = pattern.otherNode( rel, node );
+                    if ( other != node && bound[ other ] &&
+                        pattern.otherNode( rel, other ) == node )
+                    {
+                        links++;
+                    }
+                }
+                if ( links > bestLinks )
+                {
+                    best = node;
+                    bestLinks = links;
+                }
+            }
+            result[ i ] = best;
+            bound[ best ] = true;
+        }
+        return result;
+    }
+
+    private static int[] toArray( List<Integer> list )
+    {
+        int[] result = new int[ list.size() ];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[ i ] = list.get( i );
+        }
+        return result;
+    }
+
+    @Override
+    PatternMatch findNextMatch()
+    {
+        return findNext() ? new PatternMatch( pattern, boundNodes.clone(),
+            boundRels.clone(), plan.reachedBy() ) : null;
+    }
+
+    /**
+     * Binds the next match to {@link #boundNodes} and {@link #boundRels}.
+     * The levels of the search are the pattern nodes in join order, except
+     * the root which is bound from the start, followed by the pattern
+     * relationships.
+     *
+     * @return {@code true} if another match was found.
+     */
+    private boolean findNext()
+    {
+        if ( exhausted )
+        {
+            return false;
+        }
+        int levels = order.length + rels.length;
+        int level;
+        if ( !started )
+        {
+            started = true;
+            if ( !pattern.nodeMatches( order[ 0 ], startNode, feedback,
+                properties ) )
+            {
+                exhausted = true;
+                return false;
+            }
+            boundNodes[ order[ 0 ] ] = startNode;
+            level = 1;
+            if ( level == levels )
+            {
+                return true;
+            }
+            open( level );
+        }
+        else
+        {
+            level = levels - 1;
+        }
+        while ( level >= 1 )
+        {
+            unbind( level );
+            if ( !bindNext( level ) )
+            {
+                level--;
+                continue;
+            }
+            level++;
+            if ( level == levels )
+            {
+                return true;
+            }
+            open( level );
+        }
+        exhausted = true;
+        return false;
+    }
+
+    private void open( int level )
+    {
+        candidates[ level ] = level < order.length ? nodeCandidates( level ) :
+            relationshipCandidates( rels[ level - order.length ] );
+        positions[ level ] = 0;
+    }
+
+    private boolean bindNext( int level )
+    {
+        Object[] levelCandidates = candidates[ level ];
+        while ( positions[ level ] < levelCandidates.length )
+        {
+            Object candidate = levelCandidates[ positions[ level ]++ ];
+            if ( level < order.length )
+            {
+                int node = order[ level ];
+                if ( pattern.nodeMatches( node, ( Node ) candidate, feedback,
+                    properties ) )
+                {
+                    boundNodes[ node ] = ( Node ) candidate;
+                    return true;
+                }
+            }
+            else
+            {
+                Relationship rel = ( Relationship ) candidate;
+                if ( visitedRels.add( rel.getId() ) )
+                {
+                    boundRels[ rels[ level - order.length ] ] = rel;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void unbind( int level )
+    {
+        if ( level < order.length )
+        {
+            boundNodes[ order[ level ] ] = null;
+        }
+        else
+        {
+            int rel = rels[ level - order.length ];
+            if ( boundRels[ rel ] != null )
+            {
+                visitedRels.remove( boundRels[ rel ].getId() );
+                boundRels[ rel ] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the graph nodes which are neighbours of all the bound graph
+     * nodes the pattern node at {@code level} is connected to, through
+     * relationships matching the pattern relationships connecting them.
+     */
+    private Object[] nodeCandidates( int level )
+    {
+        int[] levelRels = joinRels[ level ];
+        NeighbourSet[] sets = new NeighbourSet[ levelRels.length ];
+        int smallest = 0;
+        for ( int i = 0; i < sets.length; i++ )
+        {
+            sets[ i ] = neighbours( levelRels[ i ], joinAnchors[ level ][ i ] );
+            if ( sets[ i ].ids.length < sets[ smallest ].ids.length )
+            {
+                smallest = i;
+            }
+        }
+        NeighbourSet first = sets[ smallest ];
+        int[] cursors = new int[ sets.length ];
+        List<Node> result = new ArrayList<Node>();
+        for ( int i = 0; i < first.ids.length; i++ )
+        {
+            long id = first.ids[ i ];
+            boolean inAll = true;
+            for ( int j = 0; j < sets.length && inAll; j++ )
+            {
+                if ( j != smallest )
+                {
+                    cursors[ j ] = seek( sets[ j ].ids, cursors[ j ], id );
+                    inAll = cursors[ j ] < sets[ j ].ids.length &&
+                        sets[ j ].ids[ cursors[ j ] ] == id;
+                }
+            }
+            if ( inAll )
+            {
+                result.add( first.nodes[ i ] );
+            }
+        }
+        return result.isEmpty() ? NO_CANDIDATES : result.toArray();
+    }
+
+    /**
+     * @return the index of the first id in {@code ids}, at or after
+     * {@code from}, which is not less than {@code id}. Gallops ahead and
+     * then searches binary, so that leapfrogging over a long set with a
+     * short one is cheap.
+     */
+    private static int seek( long[] ids, int from, long id )
+    {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while ( high < ids.length && ids[ high ] < id )
+        {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min( high, ids.length );
+        int index = Arrays.binarySearch( ids, low, high, id );
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private NeighbourSet neighbours( int rel, int anchor )
+    {
+        Node anchorNode = boundNodes[ anchor ];
+        NeighbourSet result = neighbours.get( neighbourProbe.set( rel, anchor,
+            anchorNode.getId() ) );
+        if ( result == null )
+        {
+            if ( neighbours.size() >= MAX_CACHED_NEIGHBOURS )
+            {
+                neighbours.clear();
+            }
+            Map<Long, Node> found = new HashMap<Long, Node>();
+            for ( Relationship graphRel : relationships( rel, anchor,
+                anchorNode ) )
+            {
+                if ( pattern.relationshipMatches( rel, graphRel, feedback ) )
+                {
+                    Node other = graphRel.getOtherNode( anchorNode );
+                    found.put( other.getId(), other );
+                }
+            }
+            result = new NeighbourSet( found );
+            neighbours.put( new NeighbourKey().set( rel, anchor,
+                anchorNode.getId() ), result );
+        }
+        return result;
+    }
+
+    /**
+     * @return the graph relationships between the bound nodes of the
+     * pattern relationship {@code rel} which match it.
+     */
+    private Object[] relationshipCandidates( int rel )
+    {
+        int first = pattern.firstNode( rel );
+        int second = pattern.secondNode( rel );
+        Node firstNode = boundNodes[ first ];
+        Node secondNode = boundNodes[ second ];
+        List<Relationship> result = new ArrayList<Relationship>();
+        for ( Relationship graphRel : relationships( rel, first, firstNode ) )
+        {
+            if ( graphRel.getOtherNode( firstNode ).equals( secondNode ) &&
+                pattern.relationshipMatches( rel, graphRel, feedback ) )
+            {
+                result.add( graphRel );
+            }
+        }
+        return result.isEmpty() ? NO_CANDIDATES : result.toArray();
+    }
+
+    private Iterable<Relationship> relationships( int rel, int from,
+        Node fromNode )
+    {
+        RelationshipType type = pattern.type( rel );
+        Direction direction = pattern.directionFrom( rel, from );
+        return type == null ? fromNode.getRelationships( direction ) :
+            fromNode.getRelationships( type, direction );
+    }
+
+    /**
+     * The distinct neighbours of a graph node through the relationships
+     * matching a pattern relationship, sorted by id.
+     */
+    private static final class NeighbourSet
+    {
+        private final long[] ids;
+        private final Node[] nodes;
+
+        NeighbourSet( Map<Long, Node> found )
+        {
+            this.ids = new long[ found.size() ];
+            int counter = 0;
+            for ( Long id : found.keySet() )
+            {
+                ids[ counter++ ] = id;
+            }
+            Arrays.sort( ids );
+            this.nodes = new Node[ ids.length ];
+            for ( int i = 0; i < ids.length; i++ )
+            {
+                nodes[ i ] = found.get( ids[ i ] );
+            }
+        }
+    }
+
+    private static final class NeighbourKey
+    {
+        private int rel;
+        private int anchor;
+        private long node;
+
+        NeighbourKey set( int rel, int anchor, long node )
+        {
+            this.rel = rel;
+            this.anchor = anchor;
+            this.node = node;
+            return this;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof NeighbourKey ) )
+            {
+                return false;
+            }
+            NeighbourKey other = ( NeighbourKey ) o;
+            return rel == other.rel && anchor == other.anchor &&
+                node == other.node;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long hash = ( node * 31 + rel ) * 31 + anchor;
+            return ( int ) ( hash ^ ( hash >>> 32 ) );
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.helpers.Predicate;
+import org.neo4j.helpers.collection.FilteringIterable;
+
+/**
+ * A match of the required part of a pattern together with the matches of
+ * each of its optional parts, kept as one group per optional root rather
+ * than merged into every combination of them. Returned from
+ * {@link PatternMatcher#matchGrouped(CompiledPattern, Node)}.
+ */
+public final class GroupedMatch
+{
+    private final OptionalMatchCache cache;
+    private final CompiledPattern pattern;
+    private final PatternMatch match;
+
+    GroupedMatch( OptionalMatchCache cache, CompiledPattern pattern,
+        PatternMatch match )
+    {
+        this.cache = cache;
+        this.pattern = pattern;
+        this.match = match;
+    }
+
+    /**
+     * @return the match of the required part of the pattern.
+     */
+    public PatternMatch getMatch()
+    {
+        return match;
+    }
+
+    /**
+     * @return the optional roots the pattern was compiled with, in the same
+     * order.
+     */
+    public List<PatternNode> getOptionalRoots()
+    {
+        int[] roots = pattern.optionalStartNodes();
+        List<PatternNode> result = new ArrayList<PatternNode>( roots.length );
+        for ( int root : roots )
+        {
+            result.add( pattern.node( root ) );
+        }
+        return Collections.unmodifiableList( result );
+    }
+
+    /**
+     * Returns the matches of the optional part starting at
+     * {@code optionalRoot}, attached to the node of the required match with
+     * the same label. They are searched when iterated, or remembered from
+     * an earlier group of the same match call attached to the same node, and
+     * contain the pattern nodes and relationships of that optional part
+     * only. If the pattern has FILTER expressions which read pattern nodes
+     * of this optional part each of them is filtered by those together with
+     * the required match. Expressions which read pattern nodes of more than
+     * one optional part aren't evaluated on grouped matches.
+     *
+     * @param optionalRoot one of the optional roots the pattern was
+     * compiled with.
+     * @return the matches of that optional part, possibly none.
+     * @throws IllegalArgumentException if {@code optionalRoot} isn't one of
+     * the optional roots of the pattern.
+     */
+    public Iterable<PatternMatch> getOptionalMatches( PatternNode optionalRoot )
+    {
+        int[] roots = pattern.optionalStartNodes();
+        for ( int i = 0; i < roots.length; i++ )
+        {
+            if ( pattern.node( roots[ i ] ) == optionalRoot )
+            {
+                return optionalMatches( i );
+            }
+        }
+        throw new IllegalArgumentException( optionalRoot +
+            " isn't an optional root of the pattern" );
+    }
+
+    private Iterable<PatternMatch> optionalMatches( final int index )
+    {
+        final Node attachNode = OptionalPatternFinder.attachNodeFor( match,
+            pattern.node( pattern.optionalStartNodes()[ index ] ) );
+        Iterable<PatternMatch> result = new Iterable<PatternMatch>()
+        {
+            public Iterator<PatternMatch> iterator()
+            {
+                return cache.matches( index, attachNode );
+            }
+        };
+        if ( pattern.hasPostFilters() )
+        {
+            result = new FilteringIterable<PatternMatch>( result,
+                new Predicate<PatternMatch>()
+                {
+                    public boolean accept( PatternMatch item )
+                    {
+                        return pattern.optionalFiltersMatch( index,
+                            PatternMatch.merge( match, item ) );
+                    }
+                } );
+        }
+        return result;
+    }
+}
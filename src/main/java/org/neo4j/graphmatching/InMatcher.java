@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Matches values which are members of a set, created by
+ * {@link CommonValueMatchers#in(Set)}. If the value is an array it matches
+ * if any item in the array is a member. Integral numbers ({@link Long},
+ * {@link Integer}, {@link Short} and {@link Byte}) are kept in a primitive
+ * hash set and match integral values equal by value whatever their type,
+ * so that {@code long[]} and {@code int[]} properties are looked up item by
+ * item without boxing. Other members are looked up with
+ * {@link Object#equals(Object)}. The members are exposed so that f.ex. a
+ * planner can push the lookup down to an index.
+ */
+public final class InMatcher implements ValueMatcher
+{
+    private final Set<Object> values;
+    private final PrimitiveLongSet integrals;
+    private final Set<Object> others;
+
+    InMatcher( Set<?> values )
+    {
+        this.values = Collections.unmodifiableSet(
+            new HashSet<Object>( values ) );
+        this.integrals = new PrimitiveLongSet( values.size() );
+        this.others = new HashSet<Object>();
+        for ( Object value : values )
+        {
+            if ( Numbers.isIntegral( value ) )
+            {
+                integrals.add( ( ( Number ) value ).longValue() );
+            }
+            else if ( value != null )
+            {
+                others.add( value );
+            }
+        }
+    }
+
+    /**
+     * @return the members of the set.
+     */
+    public Set<Object> getValues()
+    {
+        return values;
+    }
+
+    /**
+     * @return a rough estimate of the fraction of values which are members.
+     */
+    public double estimatedSelectivity()
+    {
+        return Math.min( 1.0, values.size() * 0.1 );
+    }
+
+    public boolean matches( Object value )
+    {
+        if ( value == null )
+        {
+            return false;
+        }
+        else if ( Numbers.isIntegral( value ) )
+        {
+            return integrals.contains( ( ( Number ) value ).longValue() );
+        }
+        else if ( value instanceof long[] )
+        {
+            for ( long item : ( long[] ) value )
+            {
+                if ( integrals.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof int[] )
+        {
+            for ( int item : ( int[] ) value )
+            {
+                if ( integrals.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof short[] )
+        {
+            for ( short item : ( short[] ) value )
+            {
+                if ( integrals.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof byte[] )
+        {
+            for ( byte item : ( byte[] ) value )
+            {
+                if ( integrals.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value instanceof Object[] )
+        {
+            for ( Object item : ( Object[] ) value )
+            {
+                if ( item != null && others.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if ( value.getClass().isArray() )
+        {
+            for ( Object item : ArrayPropertyUtil.propertyValueToCollection(
+                value ) )
+            {
+                if ( others.contains( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return others.contains( value );
+    }
+}
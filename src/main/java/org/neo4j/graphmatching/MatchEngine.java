@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * The ways the {@link PatternMatcher} can search for the matches of a
+ * pattern, see {@link PatternMatcher#match(CompiledPattern, Node, MatchEngine)}.
+ * All of them find the same matches, but in different orders and with
+ * different costs depending on the shape of the pattern.
+ */
+public enum MatchEngine
+{
+    /**
+     * Binds one pattern relationship at a time, expanding from the pattern
+     * nodes already bound. Good for tree shaped patterns and patterns with
+     * few cycles. This is what {@link PatternMatcher#match(CompiledPattern,
+     * Node)} uses.
+     */
+    EXPAND,
+
+    /**
+     * Binds one pattern node at a time, to the intersection of the
+     * neighbours of the graph nodes bound to its pattern neighbours. Good
+     * for cyclic patterns like triangles, 4-cycles and cliques, where
+     * expanding one relationship at a time finds many partial matches which
+     * can't be closed.
+     */
+    GENERIC_JOIN;
+}
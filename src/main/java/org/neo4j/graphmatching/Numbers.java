@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+/**
+ * Compares numbers of different types by value. Integral numbers are
+ * compared as {@code long}s, since a {@code double} only holds 53 bits of
+ * them, and an integral number is compared to a floating point number
+ * without converting either of them.
+ */
+final class Numbers
+{
+    private Numbers()
+    {
+    }
+
+    /**
+     * @return whether {@code value} is a {@link Long}, {@link Integer},
+     * {@link Short} or {@link Byte}.
+     */
+    static boolean isIntegral( Object value )
+    {
+        return value instanceof Long || value instanceof Integer ||
+            value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as
+     * {@code value} is less than, equal to or greater than {@code other}.
+     */
+    static int compare( long value, long other )
+    {
+        return value < other ? -1 : value == other ? 0 : 1;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as
+     * {@code value} is less than, equal to or greater than {@code other}.
+     * NaN is greater than any {@code long}, like in
+     * {@link Double#compare(double, double)}.
+     */
+    static int compare( long value, double other )
+    {
+        if ( Double.isNaN( other ) || other >= 0x1p63 )
+        {
+            return -1;
+        }
+        if ( other < -0x1p63 )
+        {
+            return 1;
+        }
+        long integral = ( long ) other;
+        if ( value != integral )
+        {
+            return compare( value, integral );
+        }
+        double fraction = other - integral;
+        return fraction > 0 ? -1 : fraction < 0 ? 1 : 0;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The matches of the optional parts of a pattern, remembered per optional
+ * start node and graph node for the lifetime of one match call. The
+ * optional parts are searched again every time an earlier optional part
+ * advances, and for every match of the required part, mostly from the same
+ * graph nodes, so only the first search of each is done for real.
+ *
+ * A search with more than {@link #MAX_MATCHES_PER_RESULT} matches isn't
+ * remembered, but searched again each time. The remembered matches are
+ * forgotten when there are more than {@link #MAX_CACHED_MATCHES} of them.
+ */
+final class OptionalMatchCache
+{
+    static final int MAX_MATCHES_PER_RESULT = 256;
+    static final int MAX_CACHED_MATCHES = 8192;
+
+    private final PatternMatcher matcher;
+    private final CompiledPattern pattern;
+    private final Map<Long, List<PatternMatch>>[] results;
+    private final PrimitiveLongSet[] tooLarge;
+    private int cachedMatches = 0;
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    OptionalMatchCache( PatternMatcher matcher, CompiledPattern pattern )
+    {
+        this.matcher = matcher;
+        this.pattern = pattern;
+        int count = pattern.optionalStartNodes().length;
+        this.results = new Map[ count ];
+        this.tooLarge = new PrimitiveLongSet[ count ];
+        for ( int i = 0; i < count; i++ )
+        {
+            results[ i ] = new HashMap<Long, List<PatternMatch>>();
+            tooLarge[ i ] = new PrimitiveLongSet( 4 );
+        }
+    }
+
+    /**
+     * @param index the index of an optional start node.
+     * @param node the graph node the optional part starts at.
+     * @return the matches of that optional part from {@code node}.
+     */
+    Iterator<PatternMatch> matches( int index, Node node )
+    {
+        long id = node.getId();
+        List<PatternMatch> cached = results[ index ].get( id );
+        if ( cached != null )
+        {
+            return cached.iterator();
+        }
+        PatternFinder finder = new PatternFinder( matcher, pattern,
+            pattern.optionalPlan( index ), node, new Relationship[ 0 ], false );
+        if ( tooLarge[ index ].contains( id ) )
+        {
+            return finder;
+        }
+        return new Recording( index, id, finder );
+    }
+
+    /**
+     * @param index the index of an optional start node.
+     * @param node the graph node the optional part starts at.
+     * @return the number of matches of that optional part from
+     * {@code node}.
+     */
+    long count( int index, Node node )
+    {
+        List<PatternMatch> cached = results[ index ].get( node.getId() );
+        if ( cached != null )
+        {
+            return cached.size();
+        }
+        long count = 0;
+        for ( Iterator<PatternMatch> matches = matches( index, node );
+            matches.hasNext(); matches.next() )
+        {
+            count++;
+        }
+        return count;
+    }
+
+    private void remember( int index, long id, List<PatternMatch> matches )
+    {
+        if ( cachedMatches + matches.size() > MAX_CACHED_MATCHES )
+        {
+            for ( Map<Long, List<PatternMatch>> result : results )
+            {
+                result.clear();
+            }
+            cachedMatches = 0;
+        }
+        results[ index ].put( id, matches );
+        cachedMatches += matches.size();
+    }
+
+    /**
+     * Returns the matches of a search and remembers them, once it has run
+     * to the end.
+     */
+    private class Recording implements Iterator<PatternMatch>
+    {
+        private final int index;
+        private final long id;
+        private final Iterator<PatternMatch> source;
+        private List<PatternMatch> recorded = new ArrayList<PatternMatch>();
+
+        Recording( int index, long id, Iterator<PatternMatch> source )
+        {
+            this.index = index;
+            this.id = id;
+            this.source = source;
+        }
+
+        public boolean hasNext()
+        {
+            boolean hasNext = source.hasNext();
+            if ( !hasNext && recorded != null )
+            {
+                remember( index, id, recorded );
+                recorded = null;
+            }
+            return hasNext;
+        }
+
+        public PatternMatch next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            PatternMatch match = source.next();
+            if ( recorded != null )
+            {
+                if ( recorded.size() < MAX_MATCHES_PER_RESULT )
+                {
+                    recorded.add( match );
+                }
+                else
+                {
+                    tooLarge[ index ].add( id );
+                    recorded = null;
+                }
+            }
+            return match;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
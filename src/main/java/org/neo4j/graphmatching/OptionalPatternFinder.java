@@ -20,26 +20,28 @@
 package org.neo4j.graphmatching;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 import org.neo4j.graphdb.Node;
 
 class OptionalPatternFinder
 {
-    private List<PatternFinder> optionalFinders;
+    private List<Iterator<PatternMatch>> optionalFinders;
     private List<PatternMatch> currentMatches;
-    private Collection<PatternNode> optionalNodes;
+    private List<Integer> optionalIndexes;
+    private List<Node> optionalNodes;
+    private final CompiledPattern pattern;
+    private final OptionalMatchCache cache;
     private PatternMatch baseMatch;
     private int position = -1;
-    private final PatternMatcher matcher;
 
-    OptionalPatternFinder( PatternMatcher matcher, PatternMatch baseMatch,
-        Collection<PatternNode> optionalNodes )
+    OptionalPatternFinder( OptionalMatchCache cache, CompiledPattern pattern,
+        PatternMatch baseMatch )
     {
-        this.matcher = matcher;
+        this.cache = cache;
+        this.pattern = pattern;
         this.baseMatch = baseMatch;
-        this.optionalNodes = optionalNodes;
         initialize();
     }
 
@@ -89,17 +91,22 @@ class OptionalPatternFinder
 
     private void initialize()
     {
-        optionalFinders = new ArrayList<PatternFinder>();
+        optionalFinders = new ArrayList<Iterator<PatternMatch>>();
         currentMatches = new ArrayList<PatternMatch>();
+        optionalIndexes = new ArrayList<Integer>();
+        optionalNodes = new ArrayList<Node>();
 
-        for ( PatternNode node : optionalNodes )
+        int[] startNodes = pattern.optionalStartNodes();
+        for ( int i = 0; i < startNodes.length; i++ )
         {
-            PatternFinder finder = new PatternFinder( matcher, node, this
-                .getNodeFor( node ), true );
+            Node node = getNodeFor( pattern.node( startNodes[ i ] ) );
+            Iterator<PatternMatch> finder = cache.matches( i, node );
             if ( finder.hasNext() )
             {
                 optionalFinders.add( finder );
                 currentMatches.add( finder.next() );
+                optionalIndexes.add( i );
+                optionalNodes.add( node );
                 position++;
             }
         }
@@ -107,24 +114,31 @@ class OptionalPatternFinder
 
     private Node getNodeFor( PatternNode node )
     {
-        for ( PatternElement element : baseMatch.getElements() )
+        return attachNodeFor( baseMatch, node );
+    }
+
+    /**
+     * @return the node in {@code baseMatch} which the optional part starting
+     * at {@code node} attaches to, i.e. the node of the pattern node with the
+     * same label, found through the label index of the compiled pattern.
+     */
+    static Node attachNodeFor( PatternMatch baseMatch, PatternNode node )
+    {
+        Node result = baseMatch.getNodeLabelledAs( node );
+        if ( result == null )
         {
-            if ( node.getLabel().equals( element.getPatternNode().getLabel() ) )
-            {
-                return element.getNode();
-            }
+            throw new RuntimeException(
+                "Optional graph isn't connected to the main graph." );
         }
-        throw new RuntimeException(
-            "Optional graph isn't connected to the main graph." );
+        return result;
     }
 
     private void reset( int fromIndex )
     {
         for ( int i = fromIndex; i < optionalFinders.size(); i++ )
         {
-            PatternFinder finder = optionalFinders.get( i );
-            PatternFinder newFinder = new PatternFinder( matcher, finder
-                .getStartPatternNode(), finder.getStartNode(), true );
+            Iterator<PatternMatch> newFinder = cache.matches(
+                optionalIndexes.get( i ), optionalNodes.get( i ) );
             optionalFinders.set( i, newFinder );
             // Only patterns with matches were added in the first place,
             // so newFinder must have at least one match.
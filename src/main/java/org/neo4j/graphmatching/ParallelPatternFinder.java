@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Iterates over independent parts of a search, f.ex. the matches from
+ * different anchor nodes or the parts of one search returned from
+ * {@link PatternMatcher#split(CompiledPattern, Node, int)}, by handing each
+ * part to an {@link Executor}. The matches are streamed from the workers
+ * through a bounded queue and returned as they are found, so a worker which
+ * gets ahead of the consumer blocks until there is room in the queue again.
+ * At most {@code maxInFlight} parts are being matched, or have matches
+ * waiting to be consumed, at any time. The parts are read only as fast as
+ * the matches are consumed.
+ */
+class ParallelPatternFinder implements Iterable<PatternMatch>,
+    Iterator<PatternMatch>
+{
+    private static final int QUEUED_MATCHES_PER_PART = 32;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Put in the queue by a worker after the last match of its part.
+     */
+    private static final Object END_OF_PART = new Object();
+
+    private final Iterator<? extends Iterable<PatternMatch>> parts;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final BlockingQueue<Object> queue;
+    private final Queue<Object> callerRun = new LinkedList<Object>();
+    private final WeakReference<ParallelPatternFinder> self =
+        new WeakReference<ParallelPatternFinder>( this );
+    private int inFlight = 0;
+    private PatternMatch next = null;
+
+    ParallelPatternFinder( Iterable<? extends Iterable<PatternMatch>> parts,
+        Executor executor, int maxInFlight )
+    {
+        if ( maxInFlight < 1 )
+        {
+            throw new IllegalArgumentException(
+                "At least one part must be allowed in flight, not " +
+                maxInFlight );
+        }
+        this.parts = parts.iterator();
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.queue = new ArrayBlockingQueue<Object>(
+            maxInFlight * QUEUED_MATCHES_PER_PART );
+    }
+
+    public Iterator<PatternMatch> iterator()
+    {
+        return this;
+    }
+
+    public boolean hasNext()
+    {
+        while ( next == null )
+        {
+            while ( inFlight < maxInFlight && parts.hasNext() )
+            {
+                executor.execute( new Worker( parts.next(), queue, callerRun,
+                    Thread.currentThread(), self ) );
+                inFlight++;
+            }
+            if ( inFlight == 0 )
+            {
+                return false;
+            }
+            Object item = take();
+            if ( item == END_OF_PART )
+            {
+                inFlight--;
+            }
+            else if ( item instanceof Failure )
+            {
+                inFlight--;
+                ( ( Failure ) item ).rethrow();
+            }
+            else
+            {
+                next = ( PatternMatch ) item;
+            }
+        }
+        return true;
+    }
+
+    public PatternMatch next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        PatternMatch result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private Object take()
+    {
+        Object item = callerRun.poll();
+        if ( item != null )
+        {
+            return item;
+        }
+        try
+        {
+            return queue.take();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                "Interrupted while waiting for matches", e );
+        }
+    }
+
+    /**
+     * Matches one part and hands its matches over to the consumer one by
+     * one. A worker only holds a weak reference to the finder it works for,
+     * so that it stops, instead of waiting for room in the queue forever,
+     * when the finder has been abandoned and garbage collected. A worker run
+     * by the {@link Executor} in the consuming thread itself can't wait for
+     * the consumer and queues its matches without a bound instead.
+     */
+    private static class Worker implements Runnable
+    {
+        private final Iterable<PatternMatch> part;
+        private final BlockingQueue<Object> queue;
+        private final Queue<Object> callerRun;
+        private final Thread consumer;
+        private final WeakReference<ParallelPatternFinder> owner;
+
+        Worker( Iterable<PatternMatch> part, BlockingQueue<Object> queue,
+            Queue<Object> callerRun, Thread consumer,
+            WeakReference<ParallelPatternFinder> owner )
+        {
+            this.part = part;
+            this.queue = queue;
+            this.callerRun = callerRun;
+            this.consumer = consumer;
+            this.owner = owner;
+        }
+
+        public void run()
+        {
+            Object last = END_OF_PART;
+            try
+            {
+                for ( PatternMatch match : part )
+                {
+                    if ( !handOver( match ) )
+                    {
+                        return;
+                    }
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                last = new Failure( e );
+            }
+            catch ( Error e )
+            {
+                last = new Failure( e );
+            }
+            handOver( last );
+        }
+
+        private boolean handOver( Object item )
+        {
+            if ( Thread.currentThread() == consumer )
+            {
+                callerRun.add( item );
+                return true;
+            }
+            try
+            {
+                while ( !queue.offer( item, OFFER_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS ) )
+                {
+                    if ( owner.get() == null )
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Carries an exception thrown while matching a part over to the
+     * consumer.
+     */
+    private static class Failure
+    {
+        private final Throwable cause;
+
+        Failure( Throwable cause )
+        {
+            this.cause = cause;
+        }
+
+        void rethrow()
+        {
+            if ( cause instanceof Error )
+            {
+                throw ( Error ) cause;
+            }
+            throw ( RuntimeException ) cause;
+        }
+    }
+}
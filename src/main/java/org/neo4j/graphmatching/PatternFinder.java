@@ -19,431 +19,685 @@
  */
 package org.neo4j.graphmatching;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.Stack;
 
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
 
 /**
  * Performs the actual finding of matches given the pattern of how a match
- * looks like and a {@link Node} to start traversing from.
+ * looks like and a {@link Node} to start traversing from. The pattern
+ * relationships are expanded in the order given by an {@link ExpansionPlan}.
+ * All the state of the search lives in the finder so that the
+ * {@link CompiledPattern} it searches for can be shared between many finders.
+ *
+ * The search is an iterative backtracking over the steps of the plan. The
+ * state of each step is kept in arrays indexed by step, or by the ordinals of
+ * the pattern nodes and relationships, which are allocated once when the
+ * finder is created. The relationships already bound are tracked by id in a
+ * {@link PrimitiveLongSet}, which never holds more than one entry per step.
+ * Candidate nodes are checked against the degree signature of their pattern
+ * node before they are bound, and the degrees seen are cached so that a
+ * node reached again when backtracking isn't counted again. Steps closing a
+ * cycle look up the relationships connecting their two bound nodes, scanning
+ * from whichever node has the fewest candidates, and cache what they find.
+ * The property constraints are re-ranked by how often they reject during
+ * this search only. The property values read, and whether a graph node
+ * matched a pattern node, are cached for the rest of the search. Steps
+ * expanding from the same node share one read of its relationships, kept in
+ * {@link RelationshipBuckets}.
  */
-class PatternFinder implements Iterable<PatternMatch>, Iterator<PatternMatch>
+class PatternFinder extends AbstractPatternFinder
 {
-    private Set<Relationship> visitedRels = new HashSet<Relationship>();
-    private PatternPosition currentPosition;
-    private OptionalPatternFinder optionalFinder;
-    private PatternNode startPatternNode;
-    private Node startNode;
-    private Collection<PatternNode> optionalNodes;
-    private boolean optional;
-    private final PatternMatcher matcher;
-
-    PatternFinder( PatternMatcher matcher, PatternNode start, Node startNode )
+    /**
+     * The number of graph nodes whose degrees are cached before the cache
+     * is cleared.
+     */
+    static final int MAX_CACHED_DEGREES = 4096;
+
+    /**
+     * The number of bound node pairs whose connecting relationships are
+     * cached before the cache is cleared.
+     */
+    static final int MAX_CACHED_ADJACENCIES = 4096;
+
+    /**
+     * The number of graph nodes whose property values are cached, and the
+     * number of graph nodes whose verdict is cached for each pattern node,
+     * before the caches are cleared.
+     */
+    static final int MAX_CACHED_PROPERTIES = 4096;
+    static final int MAX_CACHED_VERDICTS = 4096;
+
+    private static final Relationship[] NO_RELATIONSHIPS = new Relationship[ 0 ];
+
+    private final PrimitiveLongSet visitedRels;
+    private final PrimitiveLongIntMap degreeRows =
+        new PrimitiveLongIntMap( 16 );
+    private int[] observedDegrees;
+    private final Map<NodePair, Relationship[]> adjacencies =
+        new HashMap<NodePair, Relationship[]>();
+    private final NodePair adjacencyProbe = new NodePair();
+    private final CompiledPattern.ConstraintFeedback feedback;
+    private final PropertyCache properties =
+        new PropertyCache( MAX_CACHED_PROPERTIES );
+    private final PrimitiveLongIntMap[] verdicts;
+    private final RelationshipBuckets[] buckets;
+    private final CompiledPattern pattern;
+    private final ExpansionPlan plan;
+    private final Node startNode;
+    private final Node[] boundNodes;
+    private final Relationship[] boundRels;
+    private final Iterator<Relationship>[] relItrs;
+    private final Relationship[] prefix;
+    private boolean started = false;
+    private boolean exhausted = false;
+    private PatternMatch reusedMatch = null;
+
+    PatternFinder( PatternMatcher matcher, CompiledPattern pattern,
+        ExpansionPlan plan, Node startNode )
+    {
+        this( matcher, pattern, plan, startNode, new Relationship[ 0 ] );
+    }
+
+    /**
+     * Creates a finder which only searches the part of the search where the
+     * first steps of the plan are bound to the relationships in
+     * {@code prefix}, as returned from {@link #split(int)}.
+     */
+    PatternFinder( PatternMatcher matcher, CompiledPattern pattern,
+        ExpansionPlan plan, Node startNode, Relationship[] prefix )
     {
-        this( matcher, start, startNode, false );
+        this( matcher, pattern, plan, startNode, prefix,
+            pattern.hasOptional() && !plan.isOptional() );
     }
 
-    PatternFinder( PatternMatcher matcher, PatternNode start, Node startNode,
-        boolean optional )
+    /**
+     * @param mergeOptional whether the optional parts of the pattern should
+     * be matched and merged into the matches, which only makes sense for the
+     * plan of the required part.
+     */
+    PatternFinder( PatternMatcher matcher, CompiledPattern pattern,
+        ExpansionPlan plan, Node startNode, Relationship[] prefix,
+        boolean mergeOptional )
     {
-        this.matcher = matcher;
-        this.startPatternNode = start;
+        super( matcher, pattern, mergeOptional );
+        this.prefix = prefix;
+        this.pattern = pattern;
+        this.plan = plan;
         this.startNode = startNode;
-        currentPosition = new PatternPosition( startNode, start, optional );
-        this.optional = optional;
+        this.boundNodes = new Node[ pattern.nodeCount() ];
+        this.boundRels = new Relationship[ pattern.relationshipCount() ];
+        this.relItrs = newIteratorArray( plan.length() );
+        this.visitedRels = new PrimitiveLongSet( plan.length() );
+        this.feedback = pattern.newConstraintFeedback();
+        this.verdicts = new PrimitiveLongIntMap[ pattern.nodeCount() ];
+        this.buckets = new RelationshipBuckets[ pattern.nodeCount() ];
     }
 
-    PatternFinder( PatternMatcher matcher, PatternNode start, Node startNode,
-        boolean optional, Collection<PatternNode> optionalNodes )
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private static Iterator<Relationship>[] newIteratorArray( int length )
     {
-        this( matcher, start, startNode, optional );
-        this.optionalNodes = optionalNodes;
+        return new Iterator[ length ];
     }
 
-    PatternNode getStartPatternNode()
+    /**
+     * Makes this finder return the same {@link PatternMatch} for every match,
+     * reading from the binding arrays of this finder. Each match is only
+     * valid until the next call to {@code hasNext()} or {@code next()}.
+     */
+    void reuseMatches()
     {
-        return startPatternNode;
+        reusedMatch = PatternMatch.view( pattern, boundNodes, boundRels,
+            plan.reachedBy() );
     }
 
-    Node getStartNode()
+    @Override
+    PatternMatch findNextMatch()
     {
-        return startNode;
+        return findNext() ? createMatch() : null;
     }
 
     /**
-     * Represents a traversal state so that we can go back to it when we've
-     * descended the graph and comes back up to continue matching on a
-     * higher level.
+     * Counts the matches this finder would return, without creating them.
+     * Each match of the required part of the pattern counts once for every
+     * combination of the matches of the optional parts which have any, the
+     * same as the matches are merged when iterating.
+     *
+     * @return the number of matches.
      */
-    private static class CallPosition
+    long count()
     {
-        private PatternPosition patternPosition;
-        private Iterator<Relationship> relItr;
-        private Relationship lastRel;
-        private PatternRelationship currentPRel;
-        private boolean popUncompleted;
-
-        CallPosition( PatternPosition patternPosition, Relationship lastRel,
-            Iterator<Relationship> relItr, PatternRelationship currentPRel,
-            boolean popUncompleted )
+        long count = 0;
+        while ( findNext() )
         {
-            this.patternPosition = patternPosition;
-            this.relItr = relItr;
-            this.lastRel = lastRel;
-            this.currentPRel = currentPRel;
-            this.popUncompleted = popUncompleted;
+            count += mergesOptional() ? optionalCombinations() : 1;
         }
+        return count;
+    }
+
+    /**
+     * @return whether this finder would return any match. The search stops
+     * at the first match of the required part, optional parts can't remove
+     * it.
+     */
+    boolean exists()
+    {
+        return findNext();
+    }
 
-        public void setLastVisitedRelationship( Relationship rel )
+    private long optionalCombinations()
+    {
+        long product = 1;
+        int[] optionalNodes = pattern.optionalStartNodes();
+        for ( int i = 0; i < optionalNodes.length; i++ )
         {
-            this.lastRel = rel;
+            long optionalCount = optionalCache().count( i,
+                boundNodeFor( optionalNodes[ i ] ) );
+            if ( optionalCount > 0 )
+            {
+                product *= optionalCount;
+            }
         }
+        return product;
+    }
 
-        public Relationship getLastVisitedRelationship()
+    /**
+     * @return the graph node bound to the first pattern node with the same
+     * label as the optional pattern node {@code optionalNode}, which is
+     * where an optional part starts.
+     */
+    private Node boundNodeFor( int optionalNode )
+    {
+        for ( int node : pattern.nodesLabelled(
+            pattern.labelOf( optionalNode ) ) )
         {
-            return lastRel;
+            if ( boundNodes[ node ] != null )
+            {
+                return boundNodes[ node ];
+            }
         }
+        throw new RuntimeException(
+            "Optional graph isn't connected to the main graph." );
+    }
 
-        public boolean shouldPopUncompleted()
+    /**
+     * Binds the next match to {@link #boundNodes} and {@link #boundRels}.
+     *
+     * @return {@code true} if another match was found.
+     */
+    private boolean findNext()
+    {
+        if ( exhausted )
         {
-            return popUncompleted;
+            return false;
         }
-
-        public PatternPosition getPatternPosition()
+        int step;
+        if ( !started )
+        {
+            // Try to find a first indication of a match, i.e. find some part
+            // of the pattern in the graph.
+            started = true;
+            step = prefix.length;
+            if ( !bindPrefix() )
+            {
+                exhausted = true;
+                return false;
+            }
+            if ( step == plan.length() )
+            {
+                return true;
+            }
+            open( step );
+        }
+        else
         {
-            return patternPosition;
+            // Continue with the next relationship on the deepest step to
+            // see if there's more of the pattern which matches the graph.
+            step = plan.length() - 1;
         }
-
-        public PatternRelationship getPatternRelationship()
+        while ( step >= prefix.length )
         {
-            return currentPRel;
+            Relationship lastRel = boundRels[ plan.relationship( step ) ];
+            if ( lastRel != null )
+            {
+                unbind( step, lastRel );
+            }
+            if ( !bindNext( step ) )
+            {
+                // No more relationships for this step, back up one step
+                relItrs[ step ] = null;
+                step--;
+                continue;
+            }
+            step++;
+            if ( step == plan.length() )
+            {
+                return true;
+            }
+            open( step );
         }
+        exhausted = true;
+        return false;
+    }
 
-        public Iterator<Relationship> getRelationshipIterator()
+    private boolean bindPrefix()
+    {
+        int root = plan.root();
+        if ( !nodeMatches( root, startNode ) ||
+            !degreesMatch( root, startNode ) )
         {
-            return relItr;
+            return false;
+        }
+        boundNodes[ root ] = startNode;
+        for ( int step = 0; step < prefix.length; step++ )
+        {
+            if ( !bind( step, prefix[ step ] ) )
+            {
+                return false;
+            }
         }
+        return true;
     }
 
-    private Stack<CallPosition> callStack = new Stack<CallPosition>();
-    private Stack<PatternPosition> uncompletedPositions =
-        new Stack<PatternPosition>();
-    private Stack<PatternElement> foundElements = new Stack<PatternElement>();
+    private void open( int step )
+    {
+        relItrs[ step ] = relationships( step );
+    }
 
-    private PatternMatch findNextMatch()
+    private Iterator<Relationship> relationships( int step )
     {
-        if ( callStack.isEmpty() && currentPosition != null )
+        if ( plan.isClosing( step ) )
         {
-            // Try to find a first indication of a match, i.e. find some part
-            // of the pattern in the graph.
-            if ( traverse( currentPosition, true ) )
-            {
-                // found first match, return it
-                currentPosition = null;
-                HashMap<PatternNode, PatternElement> filteredElements =
-                    new HashMap<PatternNode, PatternElement>();
-                HashMap<PatternRelationship, Relationship> relElements =
-                    new HashMap<PatternRelationship, Relationship>();
-                for ( PatternElement element : foundElements )
-                {
-                    filteredElements.put( element.getPatternNode(), element );
-                    relElements.put( element.getFromPatternRelationship(),
-                        element.getFromRelationship() );
-                }
-                PatternMatch patternMatch = new PatternMatch( filteredElements,
-                    relElements );
-                foundElements.pop();
-                return patternMatch;
-            }
-            currentPosition = null;
+            return Arrays.asList( connecting( step ) ).iterator();
         }
-        else if ( !callStack.isEmpty() )
+        int from = plan.from( step );
+        int bucket = plan.bucketIndex( step );
+        if ( bucket != -1 )
         {
-            // Traverse deeper into the sub graph and see if there's more of
-            // the pattern which matches the graph.
-            boolean matchFound = false;
-            do
+            if ( buckets[ from ] == null )
             {
-                CallPosition callStackInformation = callStack.peek();
-                matchFound = traverse( callStackInformation );
+                buckets[ from ] = new RelationshipBuckets( pattern, plan, from );
             }
-            while ( !callStack.isEmpty() && !matchFound );
-            if ( matchFound )
+            return buckets[ from ].bucket( boundNodes[ from ], bucket )
+                .iterator();
+        }
+        return getRelationshipIterator( from, boundNodes[ from ],
+            plan.relationship( step ) );
+    }
+
+    /**
+     * @return the relationships which may match the pattern relationship of
+     * the closing {@code step}, i.e. the ones between its two bound nodes.
+     */
+    private Relationship[] connecting( int step )
+    {
+        Node fromNode = boundNodes[ plan.from( step ) ];
+        Node toNode = boundNodes[ plan.to( step ) ];
+        Relationship[] result = adjacencies.get( adjacencyProbe.set( step,
+            fromNode.getId(), toNode.getId() ) );
+        if ( result == null )
+        {
+            if ( adjacencies.size() >= MAX_CACHED_ADJACENCIES )
             {
-                // found another match, returning it
-                HashMap<PatternNode, PatternElement> filteredElements =
-                    new HashMap<PatternNode, PatternElement>();
-                HashMap<PatternRelationship, Relationship> relElements =
-                    new HashMap<PatternRelationship, Relationship>();
-                for ( PatternElement element : foundElements )
-                {
-                    filteredElements.put( element.getPatternNode(), element );
-                    relElements.put( element.getFromPatternRelationship(),
-                        element.getFromRelationship() );
-                }
-                PatternMatch patternMatch = new PatternMatch( filteredElements,
-                    relElements );
-                foundElements.pop();
-                return patternMatch;
+                adjacencies.clear();
             }
+            result = findConnecting( step, fromNode, toNode );
+            adjacencies.put( new NodePair().set( step, fromNode.getId(),
+                toNode.getId() ), result );
         }
-        return null;
+        return result;
     }
 
-    private boolean traverse( CallPosition callPos )
+    /**
+     * Scans the candidate relationships of both nodes in lockstep. The scan
+     * of the node with the fewest candidates ends first and has then seen
+     * all the connecting relationships, so hub nodes are never scanned to
+     * the end unless both nodes are hubs.
+     */
+    private Relationship[] findConnecting( int step, Node fromNode,
+        Node toNode )
     {
-        // make everything like it was before we returned previous match
-        PatternPosition currentPos = callPos.getPatternPosition();
-        PatternRelationship pRel = callPos.getPatternRelationship();
-        pRel.mark();
-        visitedRels.remove( callPos.getLastVisitedRelationship() );
-        Node currentNode = currentPos.getCurrentNode();
-        Iterator<Relationship> relItr = callPos.getRelationshipIterator();
-        while ( relItr.hasNext() )
+        int pRel = plan.relationship( step );
+        Iterator<Relationship> fromRels = getRelationshipIterator(
+            plan.from( step ), fromNode, pRel );
+        Iterator<Relationship> toRels = getRelationshipIterator(
+            plan.to( step ), toNode, pRel );
+        List<Relationship> fromSide = new ArrayList<Relationship>( 1 );
+        List<Relationship> toSide = new ArrayList<Relationship>( 1 );
+        while ( true )
         {
-            Relationship rel = relItr.next();
-            if ( visitedRels.contains( rel ) )
+            if ( !fromRels.hasNext() )
             {
-                continue;
+                return toArray( fromSide );
             }
-            if ( !checkProperties( pRel, rel ) )
+            Relationship rel = fromRels.next();
+            if ( rel.getOtherNode( fromNode ).equals( toNode ) )
             {
-                continue;
+                fromSide.add( rel );
             }
-            Node otherNode = rel.getOtherNode( currentNode );
-            PatternNode otherPosition = pRel.getOtherNode( currentPos
-                .getPatternNode() );
-            pRel.mark();
-            visitedRels.add( rel );
-            if ( traverse( new PatternPosition( otherNode, otherPosition, pRel,
-                rel, optional ), true ) )
+            if ( !toRels.hasNext() )
             {
-                callPos.setLastVisitedRelationship( rel );
-                return true;
+                return toArray( toSide );
+            }
+            rel = toRels.next();
+            if ( rel.getOtherNode( toNode ).equals( fromNode ) )
+            {
+                toSide.add( rel );
             }
-            visitedRels.remove( rel );
-            pRel.unMark();
         }
-        pRel.unMark();
-        if ( callPos.shouldPopUncompleted() )
+    }
+
+    private static Relationship[] toArray( List<Relationship> rels )
+    {
+        return rels.isEmpty() ? NO_RELATIONSHIPS :
+            rels.toArray( new Relationship[ rels.size() ] );
+    }
+
+    private boolean bindNext( int step )
+    {
+        Iterator<Relationship> relItr = relItrs[ step ];
+        while ( relItr.hasNext() )
         {
-            uncompletedPositions.pop();
+            if ( bind( step, relItr.next() ) )
+            {
+                return true;
+            }
         }
-        callStack.pop();
-        foundElements.pop();
         return false;
     }
 
-    private boolean traverse( PatternPosition currentPos, boolean pushElement )
+    private PatternMatch createMatch()
     {
-        PatternNode pNode = currentPos.getPatternNode();
-        Node currentNode = currentPos.getCurrentNode();
+        if ( reusedMatch != null )
+        {
+            return reusedMatch;
+        }
+        return new PatternMatch( pattern, boundNodes.clone(),
+            boundRels.clone(), plan.reachedBy() );
+    }
 
-        if ( !checkProperties( pNode, currentNode ) )
+    /**
+     * Binds the relationship, and the node at the other end of it, to the
+     * given step of the plan if they match it.
+     *
+     * @return {@code true} if the relationship was bound.
+     */
+    private boolean bind( int step, Relationship rel )
+    {
+        if ( visitedRels.contains( rel.getId() ) )
         {
             return false;
         }
-
-        if ( pushElement )
+        int pRel = plan.relationship( step );
+        if ( !pattern.relationshipMatches( pRel, rel, feedback ) )
         {
-            foundElements.push( new PatternElement(
-                pNode, currentPos.fromPatternRel(),
-                currentNode, currentPos.fromRelationship() ) );
+            return false;
         }
-        if ( currentPos.hasNext() )
+        int to = plan.to( step );
+        Node otherNode = rel.getOtherNode( boundNodes[ plan.from( step ) ] );
+        if ( plan.isClosing( step ) )
         {
-            boolean popUncompleted = false;
-            PatternRelationship pRel = currentPos.next();
-            if ( currentPos.hasNext() )
-            {
-                uncompletedPositions.push( currentPos );
-                popUncompleted = true;
-            }
-            assert !pRel.isMarked();
-            Iterator<Relationship> relItr = getRelationshipIterator( currentPos
-                .getPatternNode(), currentNode, pRel );
-            pRel.mark();
-            while ( relItr.hasNext() )
+            if ( !otherNode.equals( boundNodes[ to ] ) )
             {
-                Relationship rel = relItr.next();
-                if ( visitedRels.contains( rel ) )
-                {
-                    continue;
-                }
-                if ( !checkProperties( pRel, rel ) )
-                {
-                    continue;
-                }
-                Node otherNode = rel.getOtherNode( currentNode );
-                PatternNode otherPosition = pRel.getOtherNode( currentPos
-                    .getPatternNode() );
-                visitedRels.add( rel );
-
-                CallPosition callPos = new CallPosition( currentPos, rel,
-                    relItr, pRel, popUncompleted );
-                callStack.push( callPos );
-                if ( traverse( new PatternPosition( otherNode, otherPosition,
-                    pRel, rel, optional ), true ) )
-                {
-                    return true;
-                }
-                callStack.pop();
-                visitedRels.remove( rel );
+                return false;
             }
-            pRel.unMark();
-            if ( popUncompleted )
-            {
-                uncompletedPositions.pop();
-            }
-            foundElements.pop();
+        }
+        else if ( !nodeMatches( to, otherNode ) ||
+            !degreesMatch( to, otherNode ) )
+        {
             return false;
         }
-        boolean matchFound = true;
-        if ( !uncompletedPositions.isEmpty() )
+        else
         {
-            PatternPosition digPos = uncompletedPositions.pop();
-            digPos.reset();
-            matchFound = traverse( digPos, false );
-            uncompletedPositions.push( digPos );
-            return matchFound;
+            boundNodes[ to ] = otherNode;
         }
+        visitedRels.add( rel.getId() );
+        boundRels[ pRel ] = rel;
         return true;
     }
 
-    private Iterator<Relationship> getRelationshipIterator(
-        PatternNode fromNode, Node currentNode, PatternRelationship pRel )
+    /**
+     * @return whether {@code graphNode} matches the association and property
+     * constraints and the pushed down FILTER expressions of {@code node}.
+     * The verdicts for pattern nodes with such checks are cached, so that a
+     * node reached again never has them evaluated again.
+     */
+    private boolean nodeMatches( int node, Node graphNode )
     {
-        Iterator<Relationship> relItr = null;
-        if ( pRel.anyRelType() )
+        if ( !pattern.hasNodeChecks( node ) )
         {
-            relItr = currentNode.getRelationships(
-                    pRel.getDirectionFrom( fromNode ) ).iterator();
+            return pattern.nodeMatches( node, graphNode );
         }
-        else
+        PrimitiveLongIntMap nodeVerdicts = verdicts[ node ];
+        if ( nodeVerdicts == null )
         {
-            relItr = currentNode.getRelationships( pRel.getType(),
-                    pRel.getDirectionFrom( fromNode ) ).iterator();
+            nodeVerdicts = new PrimitiveLongIntMap( 16 );
+            verdicts[ node ] = nodeVerdicts;
+        }
+        long id = graphNode.getId();
+        int verdict = nodeVerdicts.get( id, -1 );
+        if ( verdict == -1 )
+        {
+            if ( nodeVerdicts.size() >= MAX_CACHED_VERDICTS )
+            {
+                nodeVerdicts.clear();
+            }
+            verdict = pattern.nodeMatches( node, graphNode, feedback,
+                properties ) ? 1 : 0;
+            nodeVerdicts.put( id, verdict );
         }
-        return relItr;
+        return verdict == 1;
     }
 
-    private boolean checkProperties(
-            AbstractPatternObject<? extends PropertyContainer> patternObject,
-            PropertyContainer object )
+    /**
+     * @return whether {@code graphNode} has at least as many relationships
+     * of each type and direction as the degree signature of {@code node}
+     * requires.
+     */
+    private boolean degreesMatch( int node, Node graphNode )
     {
-        PropertyContainer associatedObject = patternObject.getAssociation();
-        if ( associatedObject != null && !object.equals( associatedObject ) )
+        int[] keys = plan.degreeKeys( node );
+        if ( keys == null )
         {
-            return false;
+            return true;
         }
-
-        for ( Map.Entry<String, Collection<ValueMatcher>> matchers :
-                patternObject.getPropertyConstraints() )
+        int[] counts = plan.degreeCounts( node );
+        int offset = degreeRow( graphNode.getId() ) * plan.degreeKeyCount();
+        for ( int i = 0; i < keys.length; i++ )
         {
-            String key = matchers.getKey();
-            Object propertyValue = object.getProperty( key, null );
-            for ( @SuppressWarnings( "hiding" ) ValueMatcher matcher : matchers.getValue() )
+            int slot = offset + keys[ i ];
+            if ( observedDegrees[ slot ] == -1 )
             {
-                if ( !matcher.matches( propertyValue ) )
-                {
-                    return false;
-                }
+                observedDegrees[ slot ] = degree( graphNode, keys[ i ] );
+            }
+            if ( observedDegrees[ slot ] < counts[ i ] )
+            {
+                return false;
             }
         }
-
         return true;
     }
 
-    public Iterator<PatternMatch> iterator()
+    /**
+     * @return the row of {@code observedDegrees} which holds the degrees
+     * observed for the graph node {@code id}, with a new row of unknown
+     * degrees assigned to it if it had none.
+     */
+    private int degreeRow( long id )
     {
-        return this;
+        int row = degreeRows.get( id, -1 );
+        if ( row != -1 )
+        {
+            return row;
+        }
+        int width = plan.degreeKeyCount();
+        row = degreeRows.size();
+        if ( row >= MAX_CACHED_DEGREES )
+        {
+            degreeRows.clear();
+            row = 0;
+        }
+        if ( observedDegrees == null )
+        {
+            observedDegrees = new int[ 16 * width ];
+        }
+        else if ( ( row + 1 ) * width > observedDegrees.length )
+        {
+            observedDegrees = Arrays.copyOf( observedDegrees,
+                observedDegrees.length * 2 );
+        }
+        Arrays.fill( observedDegrees, row * width, ( row + 1 ) * width, -1 );
+        degreeRows.put( id, row );
+        return row;
     }
 
-    private PatternMatch match = null;
-    private PatternMatch optionalMatch = null;
+    /**
+     * Counts the relationships of {@code graphNode} for a degree key, but
+     * never beyond the highest count required for it.
+     */
+    private int degree( Node graphNode, int key )
+    {
+        RelationshipType type = plan.degreeType( key );
+        Direction direction = plan.degreeDirection( key );
+        Iterator<Relationship> rels = type == null ?
+            graphNode.getRelationships( direction ).iterator() :
+            graphNode.getRelationships( type, direction ).iterator();
+        int cap = plan.degreeCap( key );
+        int count = 0;
+        while ( count < cap && rels.hasNext() )
+        {
+            rels.next();
+            count++;
+        }
+        return count;
+    }
 
-    public boolean hasNext()
+    private void unbind( int step, Relationship rel )
     {
-        if ( match == null )
+        visitedRels.remove( rel.getId() );
+        boundRels[ plan.relationship( step ) ] = null;
+        if ( !plan.isClosing( step ) )
         {
-            match = findNextMatch();
-            optionalFinder = null;
+            boundNodes[ plan.to( step ) ] = null;
         }
-        else if ( optionalNodes != null )
+    }
+
+    /**
+     * Splits the search into independent parts, one for each way the first
+     * {@code depth} steps of the plan can be bound. Each part is represented
+     * by the relationships bound to those steps, and can be searched by a
+     * {@link PatternFinder} created with it as its prefix. A finder which
+     * already has a prefix only splits its own part of the search, so a
+     * part can be split further without splitting the whole search again.
+     *
+     * @param depth the number of steps to bind, capped by the plan length.
+     * @return the prefixes of the independent parts of the search.
+     */
+    List<Relationship[]> split( int depth )
+    {
+        List<Relationship[]> result = new ArrayList<Relationship[]>();
+        int root = plan.root();
+        if ( pattern.nodeMatches( root, startNode ) )
         {
-            if ( optionalFinder == null )
+            boundNodes[ root ] = startNode;
+            int bound = 0;
+            while ( bound < prefix.length && bind( bound, prefix[ bound ] ) )
             {
-                optionalFinder = new OptionalPatternFinder( matcher, match,
-                    optionalNodes );
+                bound++;
             }
-            if ( optionalMatch == null )
+            if ( bound == prefix.length )
             {
-                optionalMatch = optionalFinder.findNextOptionalPatterns();
+                int length = Math.max( prefix.length,
+                    Math.min( depth, plan.length() ) );
+                Relationship[] current = new Relationship[ length ];
+                System.arraycopy( prefix, 0, current, 0, prefix.length );
+                split( prefix.length, length, current, result );
             }
-            if ( optionalMatch == null && optionalFinder.anyMatchFound() )
+            while ( bound > 0 )
             {
-                match = null;
-                return hasNext();
+                bound--;
+                unbind( bound, prefix[ bound ] );
             }
+            boundNodes[ root ] = null;
         }
-        return match != null;
+        return result;
     }
 
-    public PatternMatch next()
+    private void split( int step, int depth, Relationship[] prefix,
+        List<Relationship[]> result )
     {
-        if ( match == null )
+        if ( step == depth )
         {
-            match = findNextMatch();
-            optionalFinder = null;
+            result.add( prefix.clone() );
+            return;
         }
-
-        PatternMatch matchToReturn = match;
-        PatternMatch optionalMatchToReturn = null;
-        if ( match != null && optionalNodes != null )
+        Iterator<Relationship> relItr = relationships( step );
+        while ( relItr.hasNext() )
         {
-            if ( optionalFinder == null )
-            {
-                optionalFinder = new OptionalPatternFinder( matcher, match,
-                    optionalNodes );
-            }
-            if ( optionalMatch == null )
-            {
-                optionalMatch = optionalFinder.findNextOptionalPatterns();
-            }
-            optionalMatchToReturn = optionalMatch;
-            optionalMatch = null;
-            if ( optionalMatchToReturn == null )
+            Relationship rel = relItr.next();
+            if ( bind( step, rel ) )
             {
-                match = null;
-                if ( optionalFinder.anyMatchFound() )
-                {
-                    return next();
-                }
+                prefix[ step ] = rel;
+                split( step + 1, depth, prefix, result );
+                unbind( step, rel );
             }
         }
-        else
-        {
-            match = null;
-        }
-        if ( matchToReturn == null )
+    }
+
+    private Iterator<Relationship> getRelationshipIterator( int fromNode,
+        Node currentNode, int pRel )
+    {
+        RelationshipType type = pattern.type( pRel );
+        Direction direction = pattern.directionFrom( pRel, fromNode );
+        if ( type == null )
         {
-            throw new NoSuchElementException();
+            return currentNode.getRelationships( direction ).iterator();
         }
-        return optionalMatchToReturn != null ? PatternMatch.merge(
-            matchToReturn, optionalMatchToReturn ) : matchToReturn;
+        return currentNode.getRelationships( type, direction ).iterator();
     }
 
-    public void remove()
+    /**
+     * The key of a cached lookup of the relationships connecting the two
+     * nodes bound by a closing step.
+     */
+    private static final class NodePair
     {
-        throw new UnsupportedOperationException();
+        private int step;
+        private long from;
+        private long to;
+
+        NodePair set( int step, long from, long to )
+        {
+            this.step = step;
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof NodePair ) )
+            {
+                return false;
+            }
+            NodePair other = ( NodePair ) o;
+            return step == other.step && from == other.from && to == other.to;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long hash = ( from * 31 + to ) * 31 + step;
+            return ( int ) ( hash ^ ( hash >>> 32 ) );
+        }
     }
 }
@@ -19,9 +19,15 @@
  */
 package org.neo4j.graphmatching;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -29,20 +35,102 @@ import org.neo4j.graphdb.Relationship;
 /**
  * Represents one match found by the {@link PatternMatcher}. The match is
  * itself a graph which looks like the pattern fed to the {@link PatternMatcher}
+ *
+ * The matching nodes and relationships are kept in arrays indexed by the
+ * ordinals the pattern nodes and pattern relationships were given in the
+ * {@link CompiledPattern}, so a match costs two arrays rather than two maps.
+ * The {@link PatternElement}s are only created if asked for.
  */
 public class PatternMatch
 {
-	private Map<PatternNode,PatternElement> elements =
-		new HashMap<PatternNode, PatternElement>();
-	private Map<PatternRelationship,Relationship> relElements =
-        new HashMap<PatternRelationship,Relationship>();
+    private final CompiledPattern pattern;
+    private final Node[] nodes;
+    private final Relationship[] relationships;
+    private final int[] reachedBy;
+    private final boolean view;
+    private List<PatternElement> elements;
 
-	PatternMatch( Map<PatternNode,PatternElement> elements,
-        Map<PatternRelationship,Relationship> relElements )
-	{
-		this.elements = elements;
-        this.relElements = relElements;
-	}
+    /**
+     * @param reachedBy the ordinal of the pattern relationship each bound
+     * pattern node was reached by, or {@code -1}, see
+     * {@link ExpansionPlan#reachedBy()}. Not copied.
+     */
+    PatternMatch( CompiledPattern pattern, Node[] nodes,
+        Relationship[] relationships, int[] reachedBy )
+    {
+        this( pattern, nodes, relationships, reachedBy, false );
+    }
+
+    private PatternMatch( CompiledPattern pattern, Node[] nodes,
+        Relationship[] relationships, int[] reachedBy, boolean view )
+    {
+        this.pattern = pattern;
+        this.nodes = nodes;
+        this.relationships = relationships;
+        this.reachedBy = reachedBy;
+        this.view = view;
+    }
+
+    /**
+     * Creates a match which reads straight from the given arrays, so that
+     * it changes as the owner of the arrays changes them. Used for the
+     * reused matches of
+     * {@link PatternMatcher#matchReusing(CompiledPattern, Node)}.
+     */
+    static PatternMatch view( CompiledPattern pattern, Node[] nodes,
+        Relationship[] relationships, int[] reachedBy )
+    {
+        return new PatternMatch( pattern, nodes, relationships, reachedBy,
+            true );
+    }
+
+    /**
+     * Get a match which won't change. Matches returned from
+     * {@link PatternMatcher#matchReusing(CompiledPattern, Node)} are only
+     * valid until the iteration moves on, call this method to keep one.
+     * Other matches never change and are returned as they are.
+     *
+     * @return a match which won't change.
+     */
+    public PatternMatch copy()
+    {
+        if ( !view )
+        {
+            return this;
+        }
+        return new PatternMatch( pattern, nodes.clone(),
+            relationships.clone(), reachedBy );
+    }
+
+    /**
+     * @return the {@link Node} bound to the pattern node with the ordinal
+     * {@code ordinal}, or {@code null}.
+     */
+    Node nodeAt( int ordinal )
+    {
+        return nodes[ ordinal ];
+    }
+
+    /**
+     * @return the {@link Node} of the first pattern node with the same label
+     * as {@code node} which is bound in this match, or {@code null}.
+     */
+    Node getNodeLabelledAs( PatternNode node )
+    {
+        int ordinal = pattern.ordinalOf( node );
+        if ( ordinal == -1 )
+        {
+            return null;
+        }
+        for ( int labelled : pattern.nodesLabelled( pattern.labelOf( ordinal ) ) )
+        {
+            if ( nodes[ labelled ] != null )
+            {
+                return nodes[ labelled ];
+            }
+        }
+        return null;
+    }
 
 	/**
 	 * @param node the {@link PatternNode} to get the {@link Node} for.
@@ -51,8 +139,8 @@ public class PatternMatch
 	 */
 	public Node getNodeFor( PatternNode node )
 	{
-		return elements.containsKey( node ) ?
-			elements.get( node ).getNode() : null;
+	    int ordinal = pattern.ordinalOf( node );
+		return ordinal != -1 ? nodes[ ordinal ] : null;
 	}
 
     /**
@@ -63,8 +151,8 @@ public class PatternMatch
      */
     public Relationship getRelationshipFor( PatternRelationship rel )
     {
-        return relElements.containsKey( rel ) ?
-            relElements.get( rel ) : null;
+        int ordinal = pattern.ordinalOf( rel );
+        return ordinal != -1 ? relationships[ ordinal ] : null;
     }
 
     /**
@@ -74,45 +162,131 @@ public class PatternMatch
      */
 	public Iterable<PatternElement> getElements()
 	{
-		return elements.values();
+	    if ( elements == null || view )
+	    {
+	        List<PatternElement> result = new ArrayList<PatternElement>();
+	        for ( int i = 0; i < nodes.length; i++ )
+	        {
+	            if ( nodes[ i ] == null )
+	            {
+	                continue;
+	            }
+	            int rel = reachedBy[ i ];
+	            result.add( new PatternElement( pattern.node( i ),
+	                rel != -1 ? pattern.relationship( rel ) : null, nodes[ i ],
+	                rel != -1 ? relationships[ rel ] : null ) );
+	        }
+	        if ( view )
+	        {
+	            return Collections.unmodifiableList( result );
+	        }
+	        elements = Collections.unmodifiableList( result );
+	    }
+		return elements;
 	}
 
 	/**
 	 * Used to merge two matches. An example is to merge in an "optional"
-	 * subgraph match into a match.
+	 * subgraph match into a match. Pattern nodes with the same label as a
+	 * pattern node in an earlier match are left out. Merging matches which
+	 * all come from the same {@link CompiledPattern} keeps the merged match
+	 * in arrays, other matches are merged into maps.
 	 * @param matches the matches to merge together.
-	 * @return the merged matches as one match.
+	 * @return the merged matches as one match, empty if there are no
+	 * matches.
 	 */
 	public static PatternMatch merge( Iterable<PatternMatch> matches )
 	{
-		Map<PatternNode, PatternElement> matchMap =
-			new HashMap<PatternNode, PatternElement>();
-        Map<PatternRelationship, Relationship> relElements =
-            new HashMap<PatternRelationship, Relationship>();
-		for ( PatternMatch match : matches )
+	    List<PatternMatch> list = new ArrayList<PatternMatch>();
+	    for ( PatternMatch match : matches )
+	    {
+	        list.add( match );
+	    }
+	    if ( list.isEmpty() || !sameCompiledPattern( list ) )
+	    {
+	        return mergeIntoMaps( list );
+	    }
+	    PatternMatch first = list.get( 0 );
+	    CompiledPattern pattern = first.pattern;
+	    Node[] nodes = new Node[ first.nodes.length ];
+	    Relationship[] relationships =
+	        new Relationship[ first.relationships.length ];
+	    int[] reachedBy = new int[ nodes.length ];
+	    Arrays.fill( reachedBy, -1 );
+	    boolean[] labels = new boolean[ pattern.labelCount() ];
+	    for ( PatternMatch match : list )
 		{
-			for ( PatternNode node : match.elements.keySet() )
-			{
-				boolean exists = false;
-				for ( PatternNode existingNode : matchMap.keySet() )
-				{
-					if ( node.getLabel().equals( existingNode.getLabel() ) )
-					{
-						exists = true;
-						break;
-					}
-				}
-				if ( !exists )
-				{
-					matchMap.put( node, match.elements.get( node ) );
-                    relElements.put(
-                        match.elements.get( node ).getFromPatternRelationship(),
-                        match.elements.get( node ).getFromRelationship() );
-				}
-			}
+	        for ( int i = 0; i < nodes.length; i++ )
+	        {
+	            int label = pattern.labelOf( i );
+	            if ( match.nodes[ i ] == null || nodes[ i ] != null ||
+	                labels[ label ] )
+	            {
+	                continue;
+	            }
+	            labels[ label ] = true;
+	            nodes[ i ] = match.nodes[ i ];
+	            reachedBy[ i ] = match.reachedBy[ i ];
+	        }
+	        for ( int i = 0; i < relationships.length; i++ )
+	        {
+	            if ( relationships[ i ] == null )
+	            {
+	                relationships[ i ] = match.relationships[ i ];
+	            }
+	        }
 		}
-		PatternMatch mergedMatch = new PatternMatch( matchMap, relElements );
-		return mergedMatch;
+		return new PatternMatch( pattern, nodes, relationships, reachedBy );
+	}
+
+	private static boolean sameCompiledPattern( List<PatternMatch> matches )
+	{
+	    CompiledPattern pattern = matches.get( 0 ).pattern;
+	    for ( PatternMatch match : matches )
+	    {
+	        if ( pattern == null || match.pattern != pattern )
+	        {
+	            return false;
+	        }
+	    }
+	    return true;
+	}
+
+	private static PatternMatch mergeIntoMaps( List<PatternMatch> matches )
+	{
+	    Map<PatternNode, PatternElement> elements =
+	        new LinkedHashMap<PatternNode, PatternElement>();
+	    Map<PatternRelationship, Relationship> relElements =
+	        new HashMap<PatternRelationship, Relationship>();
+	    Set<String> labels = new HashSet<String>();
+	    for ( PatternMatch match : matches )
+	    {
+	        for ( PatternElement element : match.getElements() )
+	        {
+	            if ( labels.add( element.getPatternNode().getLabel() ) )
+	            {
+	                elements.put( element.getPatternNode(), element );
+	            }
+	        }
+	        match.addRelationshipsTo( relElements );
+	    }
+	    return new MergedMatch( elements, relElements );
+	}
+
+	/**
+	 * Adds the relationships of this match to {@code target}, unless their
+	 * pattern relationships already are in it.
+	 */
+	void addRelationshipsTo( Map<PatternRelationship, Relationship> target )
+	{
+	    for ( int i = 0; i < relationships.length; i++ )
+	    {
+	        PatternRelationship rel = pattern.relationship( i );
+	        if ( relationships[ i ] != null && !target.containsKey( rel ) )
+	        {
+	            target.put( rel, relationships[ i ] );
+	        }
+	    }
 	}
 
     /**
@@ -126,4 +300,69 @@ public class PatternMatch
 	{
 		return merge( Arrays.asList( matches ) );
 	}
+
+    /**
+     * A match merged from matches of different compiled patterns, which
+     * keeps its nodes and relationships in maps.
+     */
+    private static class MergedMatch extends PatternMatch
+    {
+        private final Map<PatternNode, PatternElement> elements;
+        private final Map<PatternRelationship, Relationship> relElements;
+
+        MergedMatch( Map<PatternNode, PatternElement> elements,
+            Map<PatternRelationship, Relationship> relElements )
+        {
+            super( null, new Node[ 0 ], new Relationship[ 0 ], new int[ 0 ] );
+            this.elements = elements;
+            this.relElements = relElements;
+        }
+
+        @Override
+        Node getNodeLabelledAs( PatternNode node )
+        {
+            for ( PatternElement element : elements.values() )
+            {
+                if ( element.getPatternNode().getLabel().equals(
+                    node.getLabel() ) )
+                {
+                    return element.getNode();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Node getNodeFor( PatternNode node )
+        {
+            PatternElement element = elements.get( node );
+            return element != null ? element.getNode() : null;
+        }
+
+        @Override
+        public Relationship getRelationshipFor( PatternRelationship rel )
+        {
+            return relElements.get( rel );
+        }
+
+        @Override
+        public Iterable<PatternElement> getElements()
+        {
+            return Collections.unmodifiableCollection( elements.values() );
+        }
+
+        @Override
+        void addRelationshipsTo(
+            Map<PatternRelationship, Relationship> target )
+        {
+            for ( Map.Entry<PatternRelationship, Relationship> entry :
+                relElements.entrySet() )
+            {
+                if ( !target.containsKey( entry.getKey() ) )
+                {
+                    target.put( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+    }
 }
@@ -19,20 +19,20 @@
  */
 package org.neo4j.graphmatching;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphmatching.filter.AbstractFilterExpression;
-import org.neo4j.graphmatching.filter.FilterBinaryNode;
-import org.neo4j.graphmatching.filter.FilterExpression;
-import org.neo4j.graphmatching.filter.FilterValueGetter;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.helpers.Predicate;
 import org.neo4j.helpers.collection.FilteringIterable;
+import org.neo4j.helpers.collection.IterableWrapper;
+import org.neo4j.helpers.collection.NestingIterable;
 
 /**
  * The PatternMatcher is the engine that performs the matching of a graph
@@ -144,31 +144,343 @@ public class PatternMatcher
 		Node startNode, Map<String, PatternNode> objectVariables,
 		Collection<PatternNode> optional )
 	{
-        Node currentStartNode = start.getAssociation();
+	    return match( compile( start, objectVariables, optional ), startNode );
+	}
+
+    /**
+     * Compile the pattern defined by the given {@link PatternNode} into an
+     * immutable {@link CompiledPattern} which can be matched any number of
+     * times, from any number of threads, with
+     * {@link #match(CompiledPattern, Node)}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @return the compiled pattern.
+     */
+    public CompiledPattern compile( PatternNode start )
+    {
+        return compile( start, null, ( Collection<PatternNode> ) null );
+    }
+
+    /**
+     * Compile the pattern defined by the given {@link PatternNode} into an
+     * immutable {@link CompiledPattern}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param objectVariables mapping from names to {@link PatternNode}s.
+     * @return the compiled pattern.
+     */
+    public CompiledPattern compile( PatternNode start,
+        Map<String, PatternNode> objectVariables )
+    {
+        return compile( start, objectVariables, ( Collection<PatternNode> ) null );
+    }
+
+    /**
+     * Compile the pattern defined by the given {@link PatternNode} into an
+     * immutable {@link CompiledPattern}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param objectVariables mapping from names to {@link PatternNode}s.
+     * @param optional nodes that form sub-patterns connected to this pattern.
+     * @return the compiled pattern.
+     */
+    public CompiledPattern compile( PatternNode start,
+        Map<String, PatternNode> objectVariables, PatternNode... optional )
+    {
+        return compile( start, objectVariables, Arrays.asList( optional ) );
+    }
+
+    /**
+     * Compile the pattern defined by the given {@link PatternNode} into an
+     * immutable {@link CompiledPattern}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param objectVariables mapping from names to {@link PatternNode}s.
+     * @param optional nodes that form sub-patterns connected to this pattern.
+     * @return the compiled pattern.
+     */
+    public CompiledPattern compile( PatternNode start,
+        Map<String, PatternNode> objectVariables,
+        Collection<PatternNode> optional )
+    {
+        if ( optional != null && optional.size() < 1 )
+        {
+            optional = null;
+        }
+        return new CompiledPattern( start, objectVariables, optional );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the {@link Node} it was associated with when it was
+     * compiled.
+     *
+     * @param pattern the compiled pattern to match.
+     * @return all matching instances of the pattern.
+     */
+    public Iterable<PatternMatch> match( CompiledPattern pattern )
+    {
+        Node startNode = pattern.getStartNodeAssociation();
+        if ( startNode == null )
+        {
+            throw new IllegalStateException(
+                    "Associating node for start pattern node is null" );
+        }
+        return match( pattern, startNode );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the given {@link Node}. Each call gets its own
+     * search state, so this method may be called concurrently for the same
+     * {@link CompiledPattern}.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @return all matching instances of the pattern.
+     */
+    public Iterable<PatternMatch> match( CompiledPattern pattern,
+        Node startNode )
+    {
+        checkStartNode( pattern, startNode );
+        return filter( pattern, new PatternFinder( this, pattern,
+            pattern.plan(), startNode ) );
+	}
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the given {@link Node}, using the given
+     * {@link MatchEngine}. The matches are the same whichever engine is
+     * used, optional parts and filters included, but may come in another
+     * order.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @param engine the engine to search with.
+     * @return all matching instances of the pattern.
+     */
+    public Iterable<PatternMatch> match( CompiledPattern pattern,
+        Node startNode, MatchEngine engine )
+    {
+        if ( engine == MatchEngine.EXPAND )
+        {
+            return match( pattern, startNode );
+        }
+        checkStartNode( pattern, startNode );
+        return filter( pattern, new GenericJoinFinder( this, pattern,
+            startNode ) );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the given {@link Node}, without creating a new
+     * {@link PatternMatch} for each match. The iterator returns the same
+     * read-only match every time, a view over the current state of the
+     * search. It is only valid until the next call to {@code hasNext()} or
+     * {@code next()}, use {@link PatternMatch#copy()} to keep a match.
+     *
+     * This is for consumers which look at each match once and then let go
+     * of it. Matches with optional parts are still merged into new matches.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @return all matching instances of the pattern, as one reused match.
+     */
+    public Iterable<PatternMatch> matchReusing( CompiledPattern pattern,
+        Node startNode )
+    {
+        checkStartNode( pattern, startNode );
+        PatternFinder finder = new PatternFinder( this, pattern,
+            pattern.plan(), startNode );
+        finder.reuseMatches();
+        return filter( pattern, finder );
+    }
+
+    /**
+     * Find the occurrences of a compiled pattern where its start pattern
+     * node starts matching at the given {@link Node}, in factorized form.
+     * The independent branches below each bound node are kept apart instead
+     * of being multiplied out, so the result is as large as the sum of the
+     * branches rather than their product. It can be expanded into the same
+     * matches as {@link #match(CompiledPattern, Node)} returns.
+     *
+     * @param pattern the compiled pattern to match, which must be
+     * {@link CompiledPattern#isFactorizable() factorizable}: tree shaped,
+     * with a type of its own on every relationship, and without optional
+     * parts or post-match filters.
+     * @param startNode the {@link Node} to start matching at.
+     * @return the factorized matches, or {@code null} if there are none.
+     * @throws IllegalArgumentException if the pattern isn't factorizable.
+     */
+    public FactorizedMatch matchFactorized( CompiledPattern pattern,
+        Node startNode )
+    {
+        if ( !pattern.isFactorizable() )
+        {
+            throw new IllegalArgumentException( "Only tree shaped patterns " +
+                "where every relationship has a type of its own, and which " +
+                "have no optional parts or post-match filters, can be " +
+                "factorized" );
+        }
+        checkStartNode( pattern, startNode );
+        return FactorizedMatch.build( pattern, startNode );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the given {@link Node}, with the matches of the
+     * optional parts grouped per match of the required part instead of
+     * merged into every combination of them. Each match of the required
+     * part comes back once, and the matches of each optional part are
+     * searched lazily when iterated, so that the results grow with the sum
+     * of the optional matches rather than their product. The required
+     * matches are filtered by the FILTER expressions which only read pattern
+     * nodes of the required part, see
+     * {@link GroupedMatch#getOptionalMatches(PatternNode)} for the others.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @return one {@link GroupedMatch} per match of the required part.
+     */
+    public Iterable<GroupedMatch> matchGrouped( final CompiledPattern pattern,
+        Node startNode )
+    {
+        checkStartNode( pattern, startNode );
+        Iterable<PatternMatch> required = new PatternFinder( this, pattern,
+            pattern.plan(), startNode, new Relationship[ 0 ], false );
+        if ( pattern.hasPostFilters() )
+        {
+            // Only the FILTER expressions on the required part, the others
+            // are evaluated per optional match
+            required = new FilteringIterable<PatternMatch>( required,
+                new Predicate<PatternMatch>()
+                {
+                    public boolean accept( PatternMatch item )
+                    {
+                        return pattern.requiredFiltersMatch( item );
+                    }
+                } );
+        }
+        final OptionalMatchCache cache = new OptionalMatchCache( this,
+            pattern );
+        return new IterableWrapper<GroupedMatch, PatternMatch>( required )
+        {
+            @Override
+            protected GroupedMatch underlyingObjectToObject( PatternMatch match )
+            {
+                return new GroupedMatch( cache, pattern, match );
+            }
+        };
+    }
+
+    /**
+     * Count the occurrences of the pattern defined by the given
+     * {@link PatternNode} where the given {@link PatternNode} starts matching
+     * at the given {@link Node}, see {@link #count(CompiledPattern, Node)}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param startNode the {@link Node} to start matching at.
+     * @return the number of matching instances of the pattern.
+     */
+    public long count( PatternNode start, Node startNode )
+    {
+        return count( compile( start ), startNode );
+    }
+
+    /**
+     * Count the occurrences of a compiled pattern where its start pattern
+     * node starts matching at the given {@link Node}. The count is the
+     * number of matches {@link #match(CompiledPattern, Node)} returns, but
+     * no {@link PatternMatch} is created unless the pattern has FILTER
+     * expressions, which need them to be evaluated.
+     *
+     * A tree shaped pattern, where every pattern relationship has a type of
+     * its own, is counted without enumerating its matches: the count below
+     * each pattern node is computed once per graph node, and the counts of
+     * the independent branches are multiplied.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @return the number of matching instances of the pattern.
+     */
+    public long count( CompiledPattern pattern, Node startNode )
+    {
+        if ( pattern.hasPostFilters() )
+        {
+            long count = 0;
+            for ( Iterator<PatternMatch> matches = matchReusing( pattern,
+                startNode ).iterator(); matches.hasNext(); matches.next() )
+            {
+                count++;
+            }
+            return count;
+        }
+        checkStartNode( pattern, startNode );
+        if ( pattern.isCountableTree() )
+        {
+            return new TreeCounter( pattern ).count( startNode );
+        }
+        return new PatternFinder( this, pattern, pattern.plan(),
+            startNode ).count();
+    }
+
+    /**
+     * Check whether there's any occurrence of the pattern defined by the
+     * given {@link PatternNode} where the given {@link PatternNode} starts
+     * matching at the given {@link Node}, see
+     * {@link #exists(CompiledPattern, Node)}.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param startNode the {@link Node} to start matching at.
+     * @return whether the pattern matches at all.
+     */
+    public boolean exists( PatternNode start, Node startNode )
+    {
+        return exists( compile( start ), startNode );
+    }
+
+    /**
+     * Check whether there's any occurrence of a compiled pattern where its
+     * start pattern node starts matching at the given {@link Node}. The
+     * search stops at the first match, and no {@link PatternMatch} is
+     * created unless the pattern has FILTER expressions.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @return whether the pattern matches at all.
+     */
+    public boolean exists( CompiledPattern pattern, Node startNode )
+    {
+        if ( pattern.hasPostFilters() )
+        {
+            return matchReusing( pattern, startNode ).iterator().hasNext();
+        }
+        checkStartNode( pattern, startNode );
+        return new PatternFinder( this, pattern, pattern.plan(),
+            startNode ).exists();
+    }
+
+    private void checkStartNode( CompiledPattern pattern, Node startNode )
+    {
+        Node currentStartNode = pattern.getStartNodeAssociation();
         if ( currentStartNode != null && !currentStartNode.equals( startNode ) )
         {
             throw new IllegalStateException(
                     "Start patter node already has associated " +
                     currentStartNode + ", can not start with " + startNode );
         }
-	    Iterable<PatternMatch> result = null;
-		if ( optional == null || optional.size() < 1 )
-		{
-			result = new PatternFinder( this, start, startNode );
-		}
-		else
-		{
-			result = new PatternFinder( this, start, startNode, false,
-			    optional );
-		}
+    }
 
-		if ( objectVariables != null )
+    private Iterable<PatternMatch> filter( CompiledPattern pattern,
+        Iterable<PatternMatch> result )
+    {
+		if ( pattern.hasPostFilters() )
 		{
     		// Uses the FILTER expressions
-    		result = new FilteredPatternFinder( result, objectVariables );
+    		result = new FilteredPatternFinder( result, pattern );
 		}
 		return result;
-	}
+    }
 
     /**
      * Find occurrences of the pattern defined by the given {@link PatternNode}
@@ -189,106 +501,222 @@ public class PatternMatcher
 		    Arrays.asList( optional ) );
 	}
 
-	private static class SimpleRegexValueGetter implements FilterValueGetter
-	{
-	    private PatternMatch match;
-	    private Map<String, PatternNode> labelToNode =
-	        new HashMap<String, PatternNode>();
-	    private Map<String, String> labelToProperty =
-	        new HashMap<String, String>();
-
-	    SimpleRegexValueGetter( Map<String, PatternNode> objectVariables,
-	        PatternMatch match, FilterExpression[] expressions )
-	    {
-            this.match = match;
-            for ( FilterExpression expression : expressions )
+    /**
+     * Find occurrences of the pattern defined by the given {@link PatternNode}
+     * where the given {@link PatternNode} starts matching at each one of the
+     * given anchor {@link Node}s. The anchors are matched concurrently by the
+     * given {@link Executor}, f.ex. a {@link java.util.concurrent.ThreadPoolExecutor
+     * thread pool} or a fork/join pool, and the matches are returned as the
+     * anchors complete, in no particular order.
+     *
+     * @param start the {@link PatternNode} to start matching at.
+     * @param anchors the {@link Node}s to start matching at.
+     * @param executor the {@link Executor} to match the anchors with.
+     * @return all matching instances of the pattern, for all anchors.
+     */
+    public Iterable<PatternMatch> match( PatternNode start,
+        Iterable<Node> anchors, Executor executor )
+    {
+        return match( compile( start ), anchors, executor );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at each one of the given anchor {@link Node}s. The
+     * anchors are matched concurrently by the given {@link Executor} and the
+     * matches are returned as the anchors complete, in no particular order.
+     * A default number of anchors, a few per processor, is allowed in flight
+     * at the same time.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param anchors the {@link Node}s to start matching at.
+     * @param executor the {@link Executor} to match the anchors with.
+     * @return all matching instances of the pattern, for all anchors.
+     */
+    public Iterable<PatternMatch> match( CompiledPattern pattern,
+        Iterable<Node> anchors, Executor executor )
+    {
+        return match( pattern, anchors, executor,
+            Runtime.getRuntime().availableProcessors() * 4 );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at each one of the given anchor {@link Node}s. The
+     * anchors are matched concurrently by the given {@link Executor} and the
+     * matches are returned as the anchors complete, in no particular order.
+     *
+     * The anchors are read lazily while iterating over the result, and at
+     * most {@code maxAnchorsInFlight} anchors are being matched or have
+     * matches waiting to be consumed at any time. This keeps the memory
+     * bounded for huge anchor sets. The matches are streamed through a
+     * bounded queue, so the workers wait for the consumer instead of
+     * collecting all matches of an anchor in memory first.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param anchors the {@link Node}s to start matching at.
+     * @param executor the {@link Executor} to match the anchors with.
+     * @param maxAnchorsInFlight the maximum number of anchors being matched
+     * or waiting to be consumed at the same time.
+     * @return all matching instances of the pattern, for all anchors.
+     */
+    public Iterable<PatternMatch> match( final CompiledPattern pattern,
+        Iterable<Node> anchors, Executor executor, int maxAnchorsInFlight )
+    {
+        return new ParallelPatternFinder(
+            new IterableWrapper<Iterable<PatternMatch>, Node>( anchors )
             {
-                mapFromExpression( expression );
-            }
-            this.labelToNode = objectVariables;
-	    }
-
-	    private void mapFromExpression( FilterExpression expression )
-	    {
-	        if ( expression instanceof FilterBinaryNode )
-	        {
-	            FilterBinaryNode node = ( FilterBinaryNode ) expression;
-	            mapFromExpression( node.getLeftExpression() );
-	            mapFromExpression( node.getRightExpression() );
-	        }
-	        else
-	        {
-	            AbstractFilterExpression pattern =
-	                ( AbstractFilterExpression ) expression;
-	            labelToProperty.put( pattern.getLabel(),
-	                pattern.getProperty() );
-	        }
-	    }
-
-        public String[] getValues( String label )
+                @Override
+                protected Iterable<PatternMatch> underlyingObjectToObject(
+                    Node anchor )
+                {
+                    return match( pattern, anchor );
+                }
+            }, executor, maxAnchorsInFlight );
+    }
+
+    /**
+     * Find occurrences of a compiled pattern where its start pattern node
+     * starts matching at the given {@link Node}, spreading the search over
+     * the given {@link Executor}. The search is split into independent
+     * parts with {@link #split(CompiledPattern, Node, int)}, one or two
+     * steps deep depending on how many parts the first step gives, and the
+     * parts are searched concurrently. The second step is only split when
+     * the workers ask for more parts, one part of the first step at a
+     * time. The matches are the same as from
+     * {@link #match(CompiledPattern, Node)}, but in no particular order.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @param executor the {@link Executor} to search the parts with.
+     * @return all matching instances of the pattern.
+     */
+    public Iterable<PatternMatch> match( final CompiledPattern pattern,
+        final Node startNode, Executor executor )
+    {
+        checkStartNode( pattern, startNode );
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Relationship[]> firstSteps = new PatternFinder( this, pattern,
+            pattern.plan(), startNode ).split( 1 );
+        Iterable<Relationship[]> prefixes = firstSteps;
+        if ( firstSteps.size() < processors * 2 )
         {
-            PatternNode pNode = labelToNode.get( label );
-            if ( pNode == null )
+            prefixes = new NestingIterable<Relationship[], Relationship[]>(
+                prefixes )
             {
-                throw new RuntimeException( "No node for label '" + label +
-                    "'" );
-            }
-            Node node = this.match.getNodeFor( pNode );
+                @Override
+                protected Iterator<Relationship[]> createNestedIterator(
+                    Relationship[] prefix )
+                {
+                    return new PatternFinder( PatternMatcher.this, pattern,
+                        pattern.plan(), startNode, prefix ).split( 2 )
+                        .iterator();
+                }
+            };
+        }
+        return new ParallelPatternFinder( parts( pattern, startNode,
+            prefixes ), executor, processors * 4 );
+    }
 
-            String propertyKey = labelToProperty.get( label );
-            if ( propertyKey == null )
-            {
-                throw new RuntimeException( "No property key for label '" +
-                    label + "'" );
-            }
+    /**
+     * Split the search for occurrences of a compiled pattern, from the given
+     * {@link Node}, into independent parts. Each part fixes the relationships
+     * matched by the first {@code depth} expansions of the search, so that
+     * the parts never overlap and together return the same matches as
+     * {@link #match(CompiledPattern, Node)}. The parts are independent of
+     * each other and may be iterated by different threads, f.ex. to spread
+     * the search around a node with a huge number of relationships over all
+     * processors.
+     *
+     * @param pattern the compiled pattern to match.
+     * @param startNode the {@link Node} to start matching at.
+     * @param depth the number of expansions each part fixes.
+     * @return the independent parts of the search.
+     */
+    public List<Iterable<PatternMatch>> split( final CompiledPattern pattern,
+        final Node startNode, int depth )
+    {
+        checkStartNode( pattern, startNode );
+        List<Iterable<PatternMatch>> parts =
+            new ArrayList<Iterable<PatternMatch>>();
+        for ( Iterable<PatternMatch> part : parts( pattern, startNode,
+            new PatternFinder( this, pattern, pattern.plan(), startNode )
+            .split( depth ) ) )
+        {
+            parts.add( part );
+        }
+        return parts;
+    }
 
-            Object rawValue = node.getProperty( propertyKey, null );
-            if ( rawValue == null )
+    /**
+     * @return the parts of the search with the given prefixes, created as
+     * {@code prefixes} is iterated.
+     */
+    private Iterable<Iterable<PatternMatch>> parts(
+        final CompiledPattern pattern, final Node startNode,
+        Iterable<Relationship[]> prefixes )
+    {
+        return new IterableWrapper<Iterable<PatternMatch>, Relationship[]>(
+            prefixes )
+        {
+            @Override
+            protected Iterable<PatternMatch> underlyingObjectToObject(
+                final Relationship[] prefix )
             {
-                return new String[ 0 ];
+                return filter( pattern, new Iterable<PatternMatch>()
+                {
+                    public Iterator<PatternMatch> iterator()
+                    {
+                        return new PatternFinder( PatternMatcher.this,
+                            pattern, pattern.plan(), startNode, prefix );
+                    }
+                } );
             }
+        };
+    }
 
-            Collection<Object> values =
-                ArrayPropertyUtil.propertyValueToCollection( rawValue );
-            String[] result = new String[ values.size() ];
-            int counter = 0;
-            for ( Object value : values )
-            {
-                result[ counter++ ] = ( String ) value;
-            }
-            return result;
+    /**
+     * @return the values of the property {@code propertyKey} of
+     * {@code node}, bound to the pattern node with the label {@code label},
+     * as FILTER expressions see them.
+     */
+    static String[] filterValues( Node node, String label,
+        String propertyKey )
+    {
+        if ( propertyKey == null )
+        {
+            throw new RuntimeException( "No property key for label '" +
+                label + "'" );
+        }
+
+        Object rawValue = node.getProperty( propertyKey, null );
+        if ( rawValue == null )
+        {
+            return new String[ 0 ];
         }
-	}
+
+        Collection<Object> values =
+            ArrayPropertyUtil.propertyValueToCollection( rawValue );
+        String[] result = new String[ values.size() ];
+        int counter = 0;
+        for ( Object value : values )
+        {
+            result[ counter++ ] = ( String ) value;
+        }
+        return result;
+    }
 
 	private static class FilteredPatternFinder
 	    extends FilteringIterable<PatternMatch>
 	{
         public FilteredPatternFinder( Iterable<PatternMatch> source,
-            final Map<String, PatternNode> objectVariables )
+            final CompiledPattern pattern )
         {
             super( source, new Predicate<PatternMatch>()
             {
                 public boolean accept( PatternMatch item )
                 {
-                    Set<PatternGroup> calculatedGroups = new HashSet<PatternGroup>();
-                    for ( PatternElement element : item.getElements() )
-                    {
-                        PatternNode node = element.getPatternNode();
-                        PatternGroup group = node.getGroup();
-                        if ( calculatedGroups.add( group ) )
-                        {
-                            FilterValueGetter valueGetter = new SimpleRegexValueGetter(
-                                objectVariables, item, group.getFilters() );
-                            for ( FilterExpression expression : group.getFilters() )
-                            {
-                                if ( !expression.matches( valueGetter ) )
-                                {
-                                    return false;
-                                }
-                            }
-                        }
-                    }
-                    return true;
+                    return pattern.postFiltersMatch( item );
                 }
             } );
         }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+/**
+ * Matches {@link String} values starting with a prefix, created by
+ * {@link CommonValueMatchers#prefix(String)}. If the value is a
+ * {@code String[]} it matches if any item in the array starts with the
+ * prefix. The prefix is exposed so that f.ex. a planner can push it down
+ * to an index as a range.
+ */
+public final class PrefixMatcher implements ValueMatcher
+{
+    private final String prefix;
+
+    PrefixMatcher( String prefix )
+    {
+        if ( prefix == null )
+        {
+            throw new IllegalArgumentException( "Null prefix" );
+        }
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return the prefix values must start with.
+     */
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * @return a rough estimate of the fraction of values with the prefix,
+     * smaller the longer the prefix is.
+     */
+    public double estimatedSelectivity()
+    {
+        return Math.pow( 0.2, Math.min( prefix.length(), 4 ) );
+    }
+
+    public boolean matches( Object value )
+    {
+        if ( value instanceof String )
+        {
+            return ( ( String ) value ).startsWith( prefix );
+        }
+        else if ( value instanceof String[] )
+        {
+            for ( String item : ( String[] ) value )
+            {
+                if ( item != null && item.startsWith( prefix ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code long}s, such as node ids, to {@code int}s, using open
+ * addressing with linear probing like {@link PrimitiveLongSet}, so that get
+ * and put never box the key or allocate once the map is big enough. There
+ * is no removal, the caches using it are cleared as a whole instead.
+ */
+final class PrimitiveLongIntMap
+{
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private boolean containsEmpty;
+    private int emptyValue;
+
+    /**
+     * @param expectedSize the number of entries the map should hold without
+     * growing.
+     */
+    PrimitiveLongIntMap( int expectedSize )
+    {
+        int capacity = 4;
+        while ( capacity < expectedSize * 2 )
+        {
+            capacity <<= 1;
+        }
+        allocate( capacity );
+    }
+
+    private void allocate( int capacity )
+    {
+        keys = new long[ capacity ];
+        Arrays.fill( keys, EMPTY );
+        values = new int[ capacity ];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int slot( long key )
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+    }
+
+    /**
+     * @return the value of {@code key}, or {@code missing} if there is none.
+     */
+    int get( long key, int missing )
+    {
+        if ( key == EMPTY )
+        {
+            return containsEmpty ? emptyValue : missing;
+        }
+        for ( int i = slot( key );; i = ( i + 1 ) & mask )
+        {
+            long current = keys[ i ];
+            if ( current == key )
+            {
+                return values[ i ];
+            }
+            if ( current == EMPTY )
+            {
+                return missing;
+            }
+        }
+    }
+
+    void put( long key, int value )
+    {
+        if ( key == EMPTY )
+        {
+            containsEmpty = true;
+            emptyValue = value;
+            return;
+        }
+        if ( ( size + 1 ) * 2 > keys.length )
+        {
+            grow();
+        }
+        for ( int i = slot( key );; i = ( i + 1 ) & mask )
+        {
+            long current = keys[ i ];
+            if ( current == key )
+            {
+                values[ i ] = value;
+                return;
+            }
+            if ( current == EMPTY )
+            {
+                keys[ i ] = key;
+                values[ i ] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    int size()
+    {
+        return size + ( containsEmpty ? 1 : 0 );
+    }
+
+    void clear()
+    {
+        containsEmpty = false;
+        if ( size > 0 )
+        {
+            Arrays.fill( keys, EMPTY );
+            size = 0;
+        }
+    }
+
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate( oldKeys.length * 2 );
+        for ( int i = 0; i < oldKeys.length; i++ )
+        {
+            if ( oldKeys[ i ] != EMPTY )
+            {
+                put( oldKeys[ i ], oldValues[ i ] );
+            }
+        }
+    }
+}
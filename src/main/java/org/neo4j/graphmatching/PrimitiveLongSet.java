@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.Arrays;
+
+/**
+ * A set of {@code long}s, such as node or relationship ids, using open
+ * addressing with linear probing. Removal shifts the following entries of
+ * the probe sequence back, so that no tombstones are left behind and add,
+ * remove and contains never allocate once the set is big enough. The value
+ * used to mark empty slots is kept in a flag of its own.
+ */
+final class PrimitiveLongSet
+{
+    private static final long EMPTY = -1;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private boolean containsEmpty;
+
+    /**
+     * @param expectedSize the number of values the set should hold without
+     * growing.
+     */
+    PrimitiveLongSet( int expectedSize )
+    {
+        int capacity = 4;
+        while ( capacity < expectedSize * 2 )
+        {
+            capacity <<= 1;
+        }
+        allocate( capacity );
+    }
+
+    private void allocate( int capacity )
+    {
+        table = new long[ capacity ];
+        Arrays.fill( table, EMPTY );
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int slot( long value )
+    {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+    }
+
+    boolean contains( long value )
+    {
+        if ( value == EMPTY )
+        {
+            return containsEmpty;
+        }
+        for ( int i = slot( value );; i = ( i + 1 ) & mask )
+        {
+            long current = table[ i ];
+            if ( current == value )
+            {
+                return true;
+            }
+            if ( current == EMPTY )
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the value wasn't already in the set.
+     */
+    boolean add( long value )
+    {
+        if ( value == EMPTY )
+        {
+            boolean added = !containsEmpty;
+            containsEmpty = true;
+            return added;
+        }
+        if ( ( size + 1 ) * 2 > table.length )
+        {
+            grow();
+        }
+        for ( int i = slot( value );; i = ( i + 1 ) & mask )
+        {
+            long current = table[ i ];
+            if ( current == value )
+            {
+                return false;
+            }
+            if ( current == EMPTY )
+            {
+                table[ i ] = value;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the value was in the set.
+     */
+    boolean remove( long value )
+    {
+        if ( value == EMPTY )
+        {
+            boolean removed = containsEmpty;
+            containsEmpty = false;
+            return removed;
+        }
+        int i = slot( value );
+        while ( table[ i ] != value )
+        {
+            if ( table[ i ] == EMPTY )
+            {
+                return false;
+            }
+            i = ( i + 1 ) & mask;
+        }
+        // Shift back the entries after the removed one which would no longer
+        // be found if the hole was left empty.
+        int hole = i;
+        for ( int j = ( hole + 1 ) & mask; table[ j ] != EMPTY; j = ( j + 1 ) & mask )
+        {
+            int home = slot( table[ j ] );
+            boolean reachable = hole <= j ? ( home <= hole || home > j ) :
+                ( home <= hole && home > j );
+            if ( reachable )
+            {
+                table[ hole ] = table[ j ];
+                hole = j;
+            }
+        }
+        table[ hole ] = EMPTY;
+        size--;
+        return true;
+    }
+
+    int size()
+    {
+        return size + ( containsEmpty ? 1 : 0 );
+    }
+
+    void clear()
+    {
+        containsEmpty = false;
+        if ( size > 0 )
+        {
+            Arrays.fill( table, EMPTY );
+            size = 0;
+        }
+    }
+
+    private void grow()
+    {
+        long[] old = table;
+        allocate( old.length * 2 );
+        for ( long value : old )
+        {
+            if ( value != EMPTY )
+            {
+                add( value );
+            }
+        }
+    }
+}
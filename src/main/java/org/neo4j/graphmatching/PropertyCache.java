@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Caches the property values of graph nodes read during one search, so that
+ * a node reached again when backtracking, or checked for another pattern
+ * node, doesn't load the same property again. Missing properties are cached
+ * too. The values are kept in one array, found through a primitive map from
+ * node id to slot per property key, so that a lookup never boxes the id or
+ * allocates. The cache is cleared when it reaches its maximum size, which
+ * keeps it bounded without the bookkeeping of an LRU.
+ *
+ * The values are only cached for the duration of one search, changes made
+ * to the graph during the search may not be seen by it.
+ */
+final class PropertyCache
+{
+    private static final Object NO_VALUE = new Object();
+
+    private final int maxSize;
+    private final Map<String, PrimitiveLongIntMap> slots =
+        new HashMap<String, PrimitiveLongIntMap>();
+    private Object[] values = new Object[ 16 ];
+    private int size = 0;
+
+    PropertyCache( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the value of the property {@code key} of {@code node}, or
+     * {@code null} if it doesn't have it.
+     */
+    Object getProperty( Node node, String key )
+    {
+        PrimitiveLongIntMap keySlots = slots.get( key );
+        if ( keySlots == null )
+        {
+            keySlots = new PrimitiveLongIntMap( 16 );
+            slots.put( key, keySlots );
+        }
+        long id = node.getId();
+        int slot = keySlots.get( id, -1 );
+        if ( slot != -1 )
+        {
+            Object value = values[ slot ];
+            return value != NO_VALUE ? value : null;
+        }
+        if ( size >= maxSize )
+        {
+            clear();
+        }
+        else if ( size == values.length )
+        {
+            Object[] grown = new Object[ Math.min( values.length * 2,
+                maxSize ) ];
+            System.arraycopy( values, 0, grown, 0, size );
+            values = grown;
+        }
+        Object value = node.getProperty( key, null );
+        values[ size ] = value != null ? value : NO_VALUE;
+        keySlots.put( id, size++ );
+        return value;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    private void clear()
+    {
+        for ( PrimitiveLongIntMap keySlots : slots.values() )
+        {
+            keySlots.clear();
+        }
+        Arrays.fill( values, null );
+        size = 0;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+/**
+ * The check of the value of one property key of a pattern object, chosen
+ * at compile time from the {@link ValueMatcher}s of that key. A key with
+ * only a {@link CommonValueMatchers#has()} or only a
+ * {@link CommonValueMatchers#exact(Object)} matcher is checked inline, and
+ * a {@link CommonValueMatchers#has()} which another matcher of the key
+ * already implies is dropped. Other matchers are called like before, in
+ * the order they were given in.
+ */
+abstract class PropertyCheck
+{
+    /**
+     * @param value the value of the property, or {@code null} if the
+     * property doesn't exist.
+     * @return whether the value passes all the matchers of the key.
+     */
+    abstract boolean matches( Object value );
+
+    /**
+     * @param matchers the matchers of one property key, in the order to
+     * evaluate them in.
+     * @return the check equivalent to evaluating all of {@code matchers}.
+     */
+    static PropertyCheck compile( ValueMatcher[] matchers )
+    {
+        ValueMatcher[] remaining = withoutImpliedHas( matchers );
+        if ( remaining.length == 1 )
+        {
+            ValueMatcher matcher = remaining[ 0 ];
+            if ( matcher == CommonValueMatchers.has() )
+            {
+                return HAS;
+            }
+            Object exact = CommonValueMatchers.exactValue( matcher );
+            if ( exact != null )
+            {
+                return new Exact( exact );
+            }
+        }
+        return new Generic( remaining );
+    }
+
+    /**
+     * Drops {@link CommonValueMatchers#has()} if there are other matchers
+     * which never accept a missing property, and any repeated one otherwise.
+     * The remaining matchers keep their order.
+     */
+    private static ValueMatcher[] withoutImpliedHas( ValueMatcher[] matchers )
+    {
+        int has = 0;
+        boolean implied = false;
+        for ( ValueMatcher matcher : matchers )
+        {
+            if ( matcher == CommonValueMatchers.has() )
+            {
+                has++;
+            }
+            else
+            {
+                implied |= CommonValueMatchers.rejectsMissing( matcher );
+            }
+        }
+        if ( has == 0 || ( !implied && has == 1 ) )
+        {
+            return matchers;
+        }
+        int keep = implied ? 0 : 1;
+        ValueMatcher[] result =
+            new ValueMatcher[ matchers.length - has + keep ];
+        int count = 0;
+        for ( ValueMatcher matcher : matchers )
+        {
+            if ( matcher != CommonValueMatchers.has() )
+            {
+                result[ count++ ] = matcher;
+            }
+            else if ( keep > 0 )
+            {
+                result[ count++ ] = matcher;
+                keep--;
+            }
+        }
+        return result;
+    }
+
+    private static final PropertyCheck HAS = new PropertyCheck()
+    {
+        @Override
+        boolean matches( Object value )
+        {
+            return value != null;
+        }
+    };
+
+    static final class Exact extends PropertyCheck
+    {
+        private final Object valueToMatch;
+
+        Exact( Object valueToMatch )
+        {
+            this.valueToMatch = valueToMatch;
+        }
+
+        @Override
+        boolean matches( Object value )
+        {
+            return value != null && valueToMatch.equals( value );
+        }
+    }
+
+    static final class Generic extends PropertyCheck
+    {
+        private final ValueMatcher[] matchers;
+
+        Generic( ValueMatcher[] matchers )
+        {
+            this.matchers = matchers;
+        }
+
+        @Override
+        boolean matches( Object value )
+        {
+            for ( ValueMatcher matcher : matchers )
+            {
+                if ( !matcher.matches( value ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+/**
+ * Matches values within a range, created by
+ * {@link CommonValueMatchers#range(Object, boolean, Object, boolean)}. If
+ * the value is an array it matches if any item in the array is within the
+ * range. Numbers are compared by value whatever their type, integral
+ * numbers as {@code long}s, and primitive array properties are scanned
+ * without boxing. The bounds are exposed so that f.ex. a planner can push
+ * the range down to an index.
+ */
+public final class RangeMatcher implements ValueMatcher
+{
+    private final Object lower;
+    private final boolean lowerInclusive;
+    private final Object upper;
+    private final boolean upperInclusive;
+    private final boolean numeric;
+    private final boolean lowerIntegral;
+    private final long lowerLong;
+    private final double lowerNumber;
+    private final boolean upperIntegral;
+    private final long upperLong;
+    private final double upperNumber;
+
+    RangeMatcher( Object lower, boolean lowerInclusive, Object upper,
+        boolean upperInclusive )
+    {
+        if ( lower == null && upper == null )
+        {
+            throw new IllegalArgumentException(
+                "A range needs at least one bound" );
+        }
+        boolean numericBounds = ( lower == null || lower instanceof Number ) &&
+            ( upper == null || upper instanceof Number );
+        if ( !numericBounds && !( ( lower == null || lower instanceof Comparable ) &&
+            ( upper == null || upper instanceof Comparable ) ) )
+        {
+            throw new IllegalArgumentException( "Bounds must be numbers, " +
+                "or comparable to each other" );
+        }
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.numeric = numericBounds;
+        this.lowerIntegral = Numbers.isIntegral( lower );
+        this.lowerLong = lowerIntegral ? ( ( Number ) lower ).longValue() : 0;
+        this.lowerNumber = numeric && lower != null ?
+            ( ( Number ) lower ).doubleValue() : Double.NEGATIVE_INFINITY;
+        this.upperIntegral = Numbers.isIntegral( upper );
+        this.upperLong = upperIntegral ? ( ( Number ) upper ).longValue() : 0;
+        this.upperNumber = numeric && upper != null ?
+            ( ( Number ) upper ).doubleValue() : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the lower bound, or {@code null} if there is none.
+     */
+    public Object getLower()
+    {
+        return lower;
+    }
+
+    /**
+     * @return whether a value equal to the lower bound is in the range.
+     */
+    public boolean isLowerInclusive()
+    {
+        return lowerInclusive;
+    }
+
+    /**
+     * @return the upper bound, or {@code null} if there is none.
+     */
+    public Object getUpper()
+    {
+        return upper;
+    }
+
+    /**
+     * @return whether a value equal to the upper bound is in the range.
+     */
+    public boolean isUpperInclusive()
+    {
+        return upperInclusive;
+    }
+
+    /**
+     * @return a rough estimate of the fraction of values in the range.
+     */
+    public double estimatedSelectivity()
+    {
+        return lower != null && upper != null ? 0.25 : 0.5;
+    }
+
+    public boolean matches( Object value )
+    {
+        if ( value == null )
+        {
+            return false;
+        }
+        if ( numeric )
+        {
+            return matchesNumbers( value );
+        }
+        if ( value instanceof Object[] )
+        {
+            for ( Object item : ( Object[] ) value )
+            {
+                if ( item != null && inRange( item ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return inRange( value );
+    }
+
+    private boolean matchesNumbers( Object value )
+    {
+        if ( Numbers.isIntegral( value ) )
+        {
+            return inRange( ( ( Number ) value ).longValue() );
+        }
+        else if ( value instanceof Number )
+        {
+            return inRange( ( ( Number ) value ).doubleValue() );
+        }
+        else if ( value instanceof long[] )
+        {
+            for ( long item : ( long[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        else if ( value instanceof int[] )
+        {
+            for ( int item : ( int[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        else if ( value instanceof double[] )
+        {
+            for ( double item : ( double[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        else if ( value instanceof float[] )
+        {
+            for ( float item : ( float[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        else if ( value instanceof short[] )
+        {
+            for ( short item : ( short[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        else if ( value instanceof byte[] )
+        {
+            for ( byte item : ( byte[] ) value )
+            {
+                if ( inRange( item ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean inRange( long value )
+    {
+        int toLower = lowerIntegral ? Numbers.compare( value, lowerLong ) :
+            Numbers.compare( value, lowerNumber );
+        int toUpper = upperIntegral ? Numbers.compare( value, upperLong ) :
+            Numbers.compare( value, upperNumber );
+        return ( lowerInclusive ? toLower >= 0 : toLower > 0 ) &&
+            ( upperInclusive ? toUpper <= 0 : toUpper < 0 );
+    }
+
+    private boolean inRange( double value )
+    {
+        if ( Double.isNaN( value ) )
+        {
+            return false;
+        }
+        boolean aboveLower = lowerIntegral ?
+            Numbers.compare( lowerLong, value ) < ( lowerInclusive ? 1 : 0 ) :
+            ( lowerInclusive ? value >= lowerNumber : value > lowerNumber );
+        boolean belowUpper = upperIntegral ?
+            Numbers.compare( upperLong, value ) > ( upperInclusive ? -1 : 0 ) :
+            ( upperInclusive ? value <= upperNumber : value < upperNumber );
+        return aboveLower && belowUpper;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private boolean inRange( Object value )
+    {
+        try
+        {
+            if ( lower != null )
+            {
+                int comparison = ( ( Comparable<Object> ) value ).compareTo(
+                    lower );
+                if ( lowerInclusive ? comparison < 0 : comparison <= 0 )
+                {
+                    return false;
+                }
+            }
+            if ( upper != null )
+            {
+                int comparison = ( ( Comparable<Object> ) value ).compareTo(
+                    upper );
+                if ( upperInclusive ? comparison > 0 : comparison >= 0 )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch ( ClassCastException e )
+        {
+            // Not comparable to the bounds, so not in the range
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * The relationships of one bound graph node, read once and sorted into one
+ * bucket per step of an {@link ExpansionPlan} expanding from its pattern
+ * node. The buckets are reused for as long as the same graph node stays
+ * bound, so backtracking into the steps again doesn't read the
+ * relationships again, and are refilled when another graph node is bound.
+ */
+final class RelationshipBuckets
+{
+    private final RelationshipType[] types;
+    private final Direction[] directions;
+    private final RelationshipType[] readTypes;
+    private final List<Relationship>[] buckets;
+    private long nodeId = -1;
+
+    RelationshipBuckets( CompiledPattern pattern, ExpansionPlan plan, int node )
+    {
+        int[] steps = plan.bucketedSteps( node );
+        this.types = new RelationshipType[ steps.length ];
+        this.directions = new Direction[ steps.length ];
+        this.buckets = newBucketArray( steps.length );
+        boolean anyType = false;
+        Map<String, RelationshipType> distinctTypes =
+            new LinkedHashMap<String, RelationshipType>();
+        for ( int i = 0; i < steps.length; i++ )
+        {
+            int rel = plan.relationship( steps[ i ] );
+            types[ i ] = pattern.type( rel );
+            directions[ i ] = pattern.directionFrom( rel, node );
+            buckets[ i ] = new ArrayList<Relationship>();
+            if ( types[ i ] == null )
+            {
+                anyType = true;
+            }
+            else
+            {
+                distinctTypes.put( types[ i ].name(), types[ i ] );
+            }
+        }
+        this.readTypes = anyType ? null : distinctTypes.values().toArray(
+            new RelationshipType[ distinctTypes.size() ] );
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private static List<Relationship>[] newBucketArray( int length )
+    {
+        return new List[ length ];
+    }
+
+    /**
+     * @return the relationships of {@code graphNode} which may match the
+     * step at {@code index} in the bucketed steps of the pattern node.
+     */
+    List<Relationship> bucket( Node graphNode, int index )
+    {
+        if ( graphNode.getId() != nodeId )
+        {
+            fill( graphNode );
+        }
+        return buckets[ index ];
+    }
+
+    private void fill( Node graphNode )
+    {
+        for ( List<Relationship> bucket : buckets )
+        {
+            bucket.clear();
+        }
+        Iterable<Relationship> rels = readTypes == null ?
+            graphNode.getRelationships() :
+            graphNode.getRelationships( readTypes );
+        long id = graphNode.getId();
+        for ( Relationship rel : rels )
+        {
+            boolean outgoing = rel.getStartNode().getId() == id;
+            boolean incoming = rel.getEndNode().getId() == id;
+            for ( int i = 0; i < buckets.length; i++ )
+            {
+                if ( types[ i ] != null && !rel.isType( types[ i ] ) )
+                {
+                    continue;
+                }
+                if ( directions[ i ] == Direction.BOTH ||
+                    ( directions[ i ] == Direction.OUTGOING && outgoing ) ||
+                    ( directions[ i ] == Direction.INCOMING && incoming ) )
+                {
+                    buckets[ i ].add( rel );
+                }
+            }
+        }
+        nodeId = id;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2008-2010 "Neo Technology,"
+ *     Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.graphmatching;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Counts the matches of a tree shaped pattern without enumerating them. The
+ * number of matches of the subtree below a pattern node, at a graph node,
+ * is the product over its child pattern relationships of the sum of the
+ * counts of the child at each graph node reached. The counts are memoised
+ * per pattern node and graph node, so a graph node reached through many
+ * paths is only counted once.
+ *
+ * This is only the same as the number of matches if the branches of the
+ * pattern are independent, i.e. if no graph relationship can match two
+ * pattern relationships, which a match may not bind it to. That is
+ * guaranteed when every pattern relationship has a type of its own, see
+ * {@link #canCount(CompiledPattern)}.
+ */
+final class TreeCounter
+{
+    private final CompiledPattern pattern;
+    private final ExpansionPlan plan;
+    private final int[][] childSteps;
+    private final Map<Long, Long>[] memo;
+
+    TreeCounter( CompiledPattern pattern )
+    {
+        this.pattern = pattern;
+        this.plan = pattern.plan();
+        int[] childCounts = new int[ pattern.nodeCount() ];
+        for ( int step = 0; step < plan.length(); step++ )
+        {
+            childCounts[ plan.from( step ) ]++;
+        }
+        this.childSteps = new int[ pattern.nodeCount() ][];
+        for ( int node = 0; node < childSteps.length; node++ )
+        {
+            childSteps[ node ] = new int[ childCounts[ node ] ];
+            childCounts[ node ] = 0;
+        }
+        for ( int step = 0; step < plan.length(); step++ )
+        {
+            int from = plan.from( step );
+            childSteps[ from ][ childCounts[ from ]++ ] = step;
+        }
+        this.memo = newMemoArray( pattern.nodeCount() );
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private static Map<Long, Long>[] newMemoArray( int length )
+    {
+        return new Map[ length ];
+    }
+
+    /**
+     * @return whether the matches of {@code pattern} can be counted by a
+     * {@link TreeCounter}: it has no optional parts or post-match filters,
+     * its required part is a tree and all its pattern relationships have
+     * distinct types.
+     */
+    static boolean canCount( CompiledPattern pattern )
+    {
+        if ( pattern.hasOptional() || pattern.hasPostFilters() )
+        {
+            return false;
+        }
+        ExpansionPlan plan = pattern.plan();
+        Set<String> types = new HashSet<String>();
+        for ( int step = 0; step < plan.length(); step++ )
+        {
+            RelationshipType type = pattern.type( plan.relationship( step ) );
+            if ( plan.isClosing( step ) || type == null ||
+                !types.add( type.name() ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of matches of the pattern with its start pattern
+     * node at {@code startNode}.
+     */
+    long count( Node startNode )
+    {
+        int root = plan.root();
+        if ( !pattern.nodeMatches( root, startNode ) )
+        {
+            return 0;
+        }
+        return count( root, startNode );
+    }
+
+    private long count( int node, Node graphNode )
+    {
+        if ( childSteps[ node ].length == 0 )
+        {
+            return 1;
+        }
+        Map<Long, Long> nodeMemo = memo[ node ];
+        if ( nodeMemo == null )
+        {
+            nodeMemo = new HashMap<Long, Long>();
+            memo[ node ] = nodeMemo;
+        }
+        Long known = nodeMemo.get( graphNode.getId() );
+        if ( known != null )
+        {
+            return known;
+        }
+        long product = 1;
+        for ( int step : childSteps[ node ] )
+        {
+            int rel = plan.relationship( step );
+            int child = plan.to( step );
+            Direction direction = pattern.directionFrom( rel, node );
+            long sum = 0;
+            for ( Relationship graphRel : graphNode.getRelationships(
+                pattern.type( rel ), direction ) )
+            {
+                if ( !pattern.relationshipMatches( rel, graphRel ) )
+                {
+                    continue;
+                }
+                Node other = graphRel.getOtherNode( graphNode );
+                if ( pattern.nodeMatches( child, other ) )
+                {
+                    sum += count( child, other );
+                }
+            }
+            product *= sum;
+            if ( product == 0 )
+            {
+                break;
+            }
+        }
+        nodeMemo.put( graphNode.getId(), product );
+        return product;
+    }
+}
@@ -69,4 +69,20 @@ public class CompareExpression extends AbstractFilterExpression
         }
         return false;
     }
+    
+    /**
+     * @return the operator, f.ex. >= or < or =
+     */
+    public String getOperator()
+    {
+        return this.operator;
+    }
+    
+    /**
+     * @return the value to compare against.
+     */
+    public Object getValue()
+    {
+        return this.compareValue;
+    }
 }
@@ -46,4 +46,13 @@ public class FilterBinaryNode implements FilterExpression
     {
         return this.e2;
     }
+    
+    /**
+     * @return {@code true} if the expressions are ANDed, {@code false} if
+     * they are ORed.
+     */
+    public boolean isAnd()
+    {
+        return this.trueForAnd;
+    }
 }
@@ -46,4 +46,12 @@ public class RegexPattern extends AbstractFilterExpression
     {
         return options != null && options.indexOf( option ) > -1;
     }
+    
+    /**
+     * @return the compiled regular expression.
+     */
+    public Pattern getPattern()
+    {
+        return this.pattern;
+    }
 }
@@ -1,12 +1,23 @@
 package matching;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -21,10 +32,21 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphmatching.CommonValueMatchers;
+import org.neo4j.graphmatching.CompiledPattern;
+import org.neo4j.graphmatching.FactorizedMatch;
+import org.neo4j.graphmatching.GroupedMatch;
+import org.neo4j.graphmatching.MatchEngine;
+import org.neo4j.graphmatching.PatternElement;
+import org.neo4j.graphmatching.PatternGroup;
 import org.neo4j.graphmatching.PatternMatch;
 import org.neo4j.graphmatching.PatternMatcher;
 import org.neo4j.graphmatching.PatternNode;
 import org.neo4j.graphmatching.PatternRelationship;
+import org.neo4j.graphmatching.ValueMatcher;
+import org.neo4j.graphmatching.filter.CompareExpression;
+import org.neo4j.graphmatching.filter.FilterBinaryNode;
+import org.neo4j.graphmatching.filter.FilterExpression;
+import org.neo4j.graphmatching.filter.RegexPattern;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 
 public class TestPatternMatching
@@ -354,15 +376,12 @@ public class TestPatternMatching
 			doMatch( pB, b2 ) )
 		{
 			assertEquals( match.getNodeFor( pA ), a );
-			Node b = match.getNodeFor( pB );
-			if ( !b.equals( b1 ) && !b.equals( b2 ) && !b.equals( b3 ) )
-			{
-				fail( "either b1 or b2 or b3" );
-			}
+			// The cycle has to close at the node the match started at
+			assertEquals( match.getNodeFor( pB ), b2 );
 			assertEquals( match.getNodeFor( pC ), c );
 			count++;
 		}
-		assertEquals( 3, count );
+		assertEquals( 1, count );
 	}
 
     @Test
@@ -752,4 +771,1291 @@ public class TestPatternMatching
         }
         assertEquals( 1, count );
     }
+
+    @Test
+    public void testCompiledPatternInterleavedMatching()
+    {
+        Node a = createInstance( "A" );
+        Node b1 = createInstance( "B1" );
+        Node b2 = createInstance( "B2" );
+        Node c = createInstance( "C" );
+        
+        final RelationshipType R = MyRelTypes.R1;
+        
+        a.createRelationshipTo( b1, R );
+        a.createRelationshipTo( b2, R );
+        b1.createRelationshipTo( c, R );
+        b2.createRelationshipTo( c, R );
+        c.createRelationshipTo( a, R );
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        PatternNode pC = new PatternNode();
+        
+        pA.createRelationshipTo( pB, R );
+        pB.createRelationshipTo( pC, R );
+        pC.createRelationshipTo( pA, R );
+        
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pA );
+        Iterator<PatternMatch> first =
+            PatternMatcher.getMatcher().match( pattern, a ).iterator();
+        Iterator<PatternMatch> second =
+            PatternMatcher.getMatcher().match( pattern, a ).iterator();
+        int count = 0;
+        while ( first.hasNext() )
+        {
+            assertTrue( second.hasNext() );
+            PatternMatch firstMatch = first.next();
+            PatternMatch secondMatch = second.next();
+            assertEquals( firstMatch.getNodeFor( pB ),
+                secondMatch.getNodeFor( pB ) );
+            assertEquals( c, firstMatch.getNodeFor( pC ) );
+            count++;
+        }
+        assertTrue( !second.hasNext() );
+        assertEquals( 2, count );
+    }
+
+    @Test
+    public void testCompiledPatternIsFrozen()
+    {
+        Node a = createInstance( "A" );
+        Node b1 = createInstance( "B1" );
+        Node b2 = createInstance( "B2" );
+        a.createRelationshipTo( b1, MyRelTypes.R1 );
+        a.createRelationshipTo( b2, MyRelTypes.R1 );
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        pA.setAssociation( a );
+        
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pA );
+        pB.addPropertyConstraint( "name", CommonValueMatchers.exact( "B1" ) );
+        pA.setAssociation( null );
+        
+        int count = 0;
+        for ( PatternMatch match : PatternMatcher.getMatcher().match( pattern ) )
+        {
+            assertEquals( a, match.getNodeFor( pA ) );
+            count++;
+        }
+        assertEquals( 2, count );
+        
+        count = 0;
+        for ( PatternMatch match : PatternMatcher.getMatcher().match( pA, a ) )
+        {
+            assertEquals( b1, match.getNodeFor( pB ) );
+            count++;
+        }
+        assertEquals( 1, count );
+    }
+
+    @Test
+    public void testCycleMustCloseAtBoundNode()
+    {
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        Node c = createInstance( "C" );
+        Node x = createInstance( "X" );
+        
+        final RelationshipType R = MyRelTypes.R1;
+        
+        a.createRelationshipTo( b, R );
+        b.createRelationshipTo( c, R );
+        c.createRelationshipTo( x, R );
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        PatternNode pC = new PatternNode();
+        
+        pA.createRelationshipTo( pB, R );
+        pB.createRelationshipTo( pC, R );
+        pC.createRelationshipTo( pA, R );
+        
+        int count = 0;
+        for ( PatternMatch match : doMatch( pA, a ) )
+        {
+            count++;
+        }
+        assertEquals( 0, count );
+        
+        Relationship closing = c.createRelationshipTo( a, R );
+        count = 0;
+        for ( PatternMatch match : doMatch( pA, a ) )
+        {
+            assertEquals( a, match.getNodeFor( pA ) );
+            assertEquals( c, match.getNodeFor( pC ) );
+            count++;
+        }
+        assertEquals( 1, count );
+        closing.delete();
+    }
+
+    @Test
+    public void testParallelMatchingOfManyAnchors()
+    {
+        final RelationshipType R1 = MyRelTypes.R1;
+        final RelationshipType R2 = MyRelTypes.R2;
+        
+        List<Node> anchors = new ArrayList<Node>();
+        Set<Node> expected = new HashSet<Node>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            Node anchor = createInstance( "anchor" + i );
+            anchors.add( anchor );
+            for ( int j = 0; j < i % 4; j++ )
+            {
+                Node friend = createInstance( "friend" + i + "_" + j );
+                anchor.createRelationshipTo( friend, R1 );
+                Node place = createInstance( "place" + i + "_" + j );
+                friend.createRelationshipTo( place, R2 );
+                expected.add( place );
+            }
+        }
+        // The worker threads only see committed data
+        tx.success();
+        tx.finish();
+        tx = graphDb.beginTx();
+        
+        PatternNode pAnchor = new PatternNode();
+        PatternNode pFriend = new PatternNode();
+        PatternNode pPlace = new PatternNode();
+        pAnchor.createRelationshipTo( pFriend, R1 );
+        pFriend.createRelationshipTo( pPlace, R2 );
+        
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pAnchor );
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            Set<Node> found = new HashSet<Node>();
+            for ( PatternMatch match : PatternMatcher.getMatcher().match(
+                pattern, anchors, executor, 3 ) )
+            {
+                assertTrue( anchors.contains( match.getNodeFor( pAnchor ) ) );
+                assertTrue( found.add( match.getNodeFor( pPlace ) ) );
+            }
+            assertEquals( expected, found );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSplitSearchOfOneAnchor()
+    {
+        final RelationshipType R1 = MyRelTypes.R1;
+        final RelationshipType R2 = MyRelTypes.R2;
+        
+        Node hub = createInstance( "hub" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node spoke = createInstance( "spoke" + i );
+            hub.createRelationshipTo( spoke, R1 );
+            for ( int j = 0; j < i % 3; j++ )
+            {
+                spoke.createRelationshipTo( createInstance( "leaf" ), R2 );
+            }
+        }
+        tx.success();
+        tx.finish();
+        tx = graphDb.beginTx();
+        
+        PatternNode pHub = new PatternNode();
+        PatternNode pSpoke = new PatternNode();
+        PatternNode pLeaf = new PatternNode();
+        pHub.createRelationshipTo( pSpoke, R1 );
+        pSpoke.createRelationshipTo( pLeaf, R2 );
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pHub );
+        
+        Set<Relationship> expected = new HashSet<Relationship>();
+        for ( PatternMatch match : PatternMatcher.getMatcher().match(
+            pattern, hub ) )
+        {
+            expected.add( match.getNodeFor( pLeaf ).getSingleRelationship(
+                R2, Direction.INCOMING ) );
+        }
+        assertEquals( 9, expected.size() );
+        
+        for ( int depth = 1; depth <= 3; depth++ )
+        {
+            Set<Relationship> found = new HashSet<Relationship>();
+            for ( Iterable<PatternMatch> part : PatternMatcher.getMatcher()
+                .split( pattern, hub, depth ) )
+            {
+                for ( PatternMatch match : part )
+                {
+                    assertTrue( found.add( match.getNodeFor( pLeaf )
+                        .getSingleRelationship( R2, Direction.INCOMING ) ) );
+                }
+            }
+            assertEquals( expected, found );
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            Set<Relationship> found = new HashSet<Relationship>();
+            for ( PatternMatch match : PatternMatcher.getMatcher().match(
+                pattern, hub, executor ) )
+            {
+                assertTrue( found.add( match.getNodeFor( pLeaf )
+                    .getSingleRelationship( R2, Direction.INCOMING ) ) );
+            }
+            assertEquals( expected, found );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMatchHoldsEveryPatternObject()
+    {
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        Node c = createInstance( "C" );
+        
+        Relationship ab = a.createRelationshipTo( b, MyRelTypes.R1 );
+        Relationship bc = b.createRelationshipTo( c, MyRelTypes.R2 );
+        Relationship ca = c.createRelationshipTo( a, MyRelTypes.R3 );
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        PatternNode pC = new PatternNode();
+        PatternRelationship pAB = pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternRelationship pBC = pB.createRelationshipTo( pC, MyRelTypes.R2 );
+        PatternRelationship pCA = pC.createRelationshipTo( pA, MyRelTypes.R3 );
+        
+        int count = 0;
+        for ( PatternMatch match : doMatch( pA, a ) )
+        {
+            assertEquals( ab, match.getRelationshipFor( pAB ) );
+            assertEquals( bc, match.getRelationshipFor( pBC ) );
+            // The relationship closing the cycle is part of the match too
+            assertEquals( ca, match.getRelationshipFor( pCA ) );
+            assertEquals( null, match.getNodeFor( new PatternNode() ) );
+            Set<Node> nodes = new HashSet<Node>();
+            for ( PatternElement element : match.getElements() )
+            {
+                assertEquals( element.getNode(),
+                    match.getNodeFor( element.getPatternNode() ) );
+                nodes.add( element.getNode() );
+            }
+            assertEquals( 3, nodes.size() );
+            count++;
+        }
+        assertEquals( 1, count );
+    }
+
+    @Test
+    public void testReusedMatches()
+    {
+        Node a = createInstance( "A" );
+        for ( int i = 0; i < 5; i++ )
+        {
+            a.createRelationshipTo( createInstance( "B" + i ), MyRelTypes.R1 );
+        }
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pA );
+        
+        Set<Node> expected = new HashSet<Node>();
+        for ( PatternMatch match : PatternMatcher.getMatcher().match(
+            pattern, a ) )
+        {
+            assertTrue( match == match.copy() );
+            expected.add( match.getNodeFor( pB ) );
+        }
+        assertEquals( 5, expected.size() );
+        
+        PatternMatch reused = null;
+        List<PatternMatch> copies = new ArrayList<PatternMatch>();
+        for ( PatternMatch match : PatternMatcher.getMatcher().matchReusing(
+            pattern, a ) )
+        {
+            if ( reused != null )
+            {
+                assertTrue( reused == match );
+            }
+            reused = match;
+            copies.add( match.copy() );
+        }
+        Set<Node> found = new HashSet<Node>();
+        for ( PatternMatch copy : copies )
+        {
+            assertEquals( a, copy.getNodeFor( pA ) );
+            found.add( copy.getNodeFor( pB ) );
+        }
+        assertEquals( expected, found );
+    }
+
+    @Test
+    public void testDegreeSignatures()
+    {
+        Node company = createInstance( "company" );
+        Node[] persons = new Node[ 3 ];
+        for ( int i = 0; i < persons.length; i++ )
+        {
+            persons[ i ] = createInstance( "person" + i );
+            persons[ i ].createRelationshipTo( company, MyRelTypes.R1 );
+            // person0 knows one, person1 two, person2 three
+            for ( int j = 0; j <= i; j++ )
+            {
+                persons[ i ].createRelationshipTo(
+                    createInstance( "friend" ), MyRelTypes.R2 );
+            }
+        }
+        // person1 has an incoming relationship of the right type too, which
+        // must not be counted as an outgoing one
+        createInstance( "other" ).createRelationshipTo( persons[ 1 ],
+            MyRelTypes.R2 );
+        
+        PatternNode pCompany = new PatternNode();
+        PatternNode pPerson = new PatternNode();
+        pPerson.createRelationshipTo( pCompany, MyRelTypes.R1 );
+        PatternNode pFriend = new PatternNode();
+        pPerson.createRelationshipTo( pFriend, MyRelTypes.R2 );
+        pPerson.createRelationshipTo( new PatternNode(), MyRelTypes.R2 );
+        
+        Set<Node> found = new HashSet<Node>();
+        int count = 0;
+        for ( PatternMatch match : doMatch( pCompany, company ) )
+        {
+            found.add( match.getNodeFor( pPerson ) );
+            count++;
+        }
+        assertEquals( 2, found.size() );
+        assertTrue( found.contains( persons[ 1 ] ) );
+        assertTrue( found.contains( persons[ 2 ] ) );
+        // 2 orderings of the friends of person1, 6 of person2
+        assertEquals( 8, count );
+    }
+
+    @Test
+    public void testClosingRelationshipsAtHub()
+    {
+        Node hub = createInstance( "hub" );
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        for ( int i = 0; i < 100; i++ )
+        {
+            hub.createRelationshipTo( createInstance( "spoke" ), MyRelTypes.R2 );
+        }
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        hub.createRelationshipTo( a, MyRelTypes.R1 );
+        // Two parallel closing relationships, and one the wrong way
+        Relationship closing1 = b.createRelationshipTo( hub, MyRelTypes.R2 );
+        Relationship closing2 = b.createRelationshipTo( hub, MyRelTypes.R2 );
+        hub.createRelationshipTo( b, MyRelTypes.R2 );
+        
+        PatternNode pHub = new PatternNode();
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        pHub.createRelationshipTo( pA, MyRelTypes.R1 );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternRelationship pClosing = pB.createRelationshipTo( pHub,
+            MyRelTypes.R2 );
+        
+        Set<Relationship> found = new HashSet<Relationship>();
+        for ( PatternMatch match : doMatch( pHub, hub ) )
+        {
+            assertEquals( b, match.getNodeFor( pB ) );
+            found.add( match.getRelationshipFor( pClosing ) );
+        }
+        assertEquals( 2, found.size() );
+        assertTrue( found.contains( closing1 ) );
+        assertTrue( found.contains( closing2 ) );
+    }
+
+    private static class CountingMatcher implements ValueMatcher
+    {
+        private final boolean result;
+        private int count;
+        
+        CountingMatcher( boolean result )
+        {
+            this.result = result;
+        }
+        
+        public boolean matches( Object value )
+        {
+            count++;
+            return result;
+        }
+    }
+    
+    @Test
+    public void testCheapAndRejectingConstraintsFirst()
+    {
+        Node hub = createInstance( "hub" );
+        for ( int i = 0; i < 100; i++ )
+        {
+            hub.createRelationshipTo( createInstance( "spoke" + i ),
+                MyRelTypes.R1 );
+        }
+        
+        PatternNode pHub = new PatternNode();
+        PatternNode pSpoke = new PatternNode();
+        pHub.createRelationshipTo( pSpoke, MyRelTypes.R1 );
+        CountingMatcher accepting = new CountingMatcher( true );
+        pSpoke.addPropertyConstraint( "name", accepting );
+        pSpoke.addPropertyConstraint( "missing", CommonValueMatchers.has() );
+        int count = 0;
+        for ( PatternMatch match : doMatch( pHub, hub ) )
+        {
+            count++;
+        }
+        assertEquals( 0, count );
+        // has() is cheaper, so it rejects every spoke on its own
+        assertEquals( 0, accepting.count );
+        
+        // Equally expensive constraints, the one which rejects is moved
+        // ahead of the other after the first rejection
+        pHub = new PatternNode();
+        PatternNode pOther = new PatternNode();
+        pHub.createRelationshipTo( pOther, MyRelTypes.R1 );
+        accepting = new CountingMatcher( true );
+        CountingMatcher rejecting = new CountingMatcher( false );
+        pOther.addPropertyConstraint( "name", accepting );
+        pOther.addPropertyConstraint( "other", rejecting );
+        for ( PatternMatch match : doMatch( pHub, hub ) )
+        {
+            count++;
+        }
+        assertEquals( 100, rejecting.count );
+        assertTrue( accepting.count <= 1 );
+        assertEquals( 0, count );
+    }
+
+    @Test
+    public void testConstraintsEvaluatedOncePerNode()
+    {
+        Node hub = createInstance( "hub" );
+        Node target = createInstance( "target" );
+        for ( int i = 0; i < 20; i++ )
+        {
+            Node spoke = createInstance( "spoke" + i );
+            hub.createRelationshipTo( spoke, MyRelTypes.R1 );
+            spoke.createRelationshipTo( target, MyRelTypes.R2 );
+        }
+        
+        PatternNode pHub = new PatternNode();
+        PatternNode pSpoke = new PatternNode();
+        PatternNode pTarget = new PatternNode();
+        pHub.createRelationshipTo( pSpoke, MyRelTypes.R1 );
+        pSpoke.createRelationshipTo( pTarget, MyRelTypes.R2 );
+        CountingMatcher matcher = new CountingMatcher( true );
+        pTarget.addPropertyConstraint( "name", matcher );
+        
+        int count = 0;
+        for ( PatternMatch match : doMatch( pHub, hub ) )
+        {
+            assertEquals( target, match.getNodeFor( pTarget ) );
+            count++;
+        }
+        assertEquals( 20, count );
+        // The target is reached through every spoke, but checked once
+        assertEquals( 1, matcher.count );
+    }
+
+    @Test
+    public void testSeveralTypedStepsFromOneNode()
+    {
+        Node center = createInstance( "center" );
+        Node out1 = createInstance( "out1" );
+        Node out2 = createInstance( "out2" );
+        Node in = createInstance( "in" );
+        Node both1 = createInstance( "both1" );
+        Node both2 = createInstance( "both2" );
+        center.createRelationshipTo( out1, MyRelTypes.R1 );
+        center.createRelationshipTo( out2, MyRelTypes.R1 );
+        in.createRelationshipTo( center, MyRelTypes.R2 );
+        center.createRelationshipTo( both1, MyRelTypes.R3 );
+        both2.createRelationshipTo( center, MyRelTypes.R3 );
+        // Wrong directions
+        createInstance( "x" ).createRelationshipTo( center, MyRelTypes.R1 );
+        center.createRelationshipTo( createInstance( "y" ), MyRelTypes.R2 );
+        
+        PatternNode pCenter = new PatternNode();
+        PatternNode pOut = new PatternNode();
+        PatternNode pIn = new PatternNode();
+        PatternNode pBoth = new PatternNode();
+        pCenter.createRelationshipTo( pOut, MyRelTypes.R1 );
+        pIn.createRelationshipTo( pCenter, MyRelTypes.R2 );
+        pCenter.createRelationshipTo( pBoth, MyRelTypes.R3, Direction.BOTH );
+        
+        Set<String> found = new HashSet<String>();
+        for ( PatternMatch match : doMatch( pCenter, center ) )
+        {
+            assertEquals( in, match.getNodeFor( pIn ) );
+            assertTrue( found.add( match.getNodeFor( pOut ).getProperty(
+                "name" ) + "/" + match.getNodeFor( pBoth ).getProperty(
+                "name" ) ) );
+        }
+        assertEquals( 4, found.size() );
+        assertTrue( found.contains( "out1/both1" ) );
+        assertTrue( found.contains( "out2/both2" ) );
+    }
+
+    private List<String> matchesWith( MatchEngine engine, PatternNode start,
+        Node startNode, PatternNode[] nodes, PatternRelationship[] rels )
+    {
+        List<String> result = new ArrayList<String>();
+        for ( PatternMatch match : PatternMatcher.getMatcher().match(
+            PatternMatcher.getMatcher().compile( start ), startNode, engine ) )
+        {
+            result.add( signatureOf( match, nodes, rels ) );
+        }
+        Collections.sort( result );
+        return result;
+    }
+
+    private String signatureOf( PatternMatch match, PatternNode[] nodes,
+        PatternRelationship[] rels )
+    {
+        StringBuilder signature = new StringBuilder();
+        for ( PatternNode node : nodes )
+        {
+            signature.append( match.getNodeFor( node ).getId() ).append( "," );
+        }
+        for ( PatternRelationship rel : rels )
+        {
+            signature.append( match.getRelationshipFor( rel ).getId() )
+                .append( "," );
+        }
+        return signature.toString();
+    }
+    
+    @Test
+    public void testGenericJoinFindsTheSameMatches()
+    {
+        Random random = new Random( 42 );
+        Node[] graph = new Node[ 12 ];
+        for ( int i = 0; i < graph.length; i++ )
+        {
+            graph[ i ] = createInstance( "n" + i );
+        }
+        for ( int i = 0; i < 60; i++ )
+        {
+            // Parallel relationships included
+            int from = random.nextInt( graph.length );
+            int to = ( from + 1 + random.nextInt( graph.length - 1 ) ) %
+                graph.length;
+            graph[ from ].createRelationshipTo( graph[ to ],
+                random.nextBoolean() ? MyRelTypes.R1 : MyRelTypes.R2 );
+        }
+        
+        // A triangle
+        PatternNode a = new PatternNode();
+        PatternNode b = new PatternNode();
+        PatternNode c = new PatternNode();
+        PatternRelationship[] triangle = new PatternRelationship[] {
+            a.createRelationshipTo( b, MyRelTypes.R1 ),
+            b.createRelationshipTo( c, MyRelTypes.R1, Direction.BOTH ),
+            c.createRelationshipTo( a ) };
+        PatternNode[] triangleNodes = new PatternNode[] { a, b, c };
+        
+        // A 4-cycle with a chord
+        PatternNode w = new PatternNode();
+        PatternNode x = new PatternNode();
+        PatternNode y = new PatternNode();
+        PatternNode z = new PatternNode();
+        PatternRelationship[] cycle = new PatternRelationship[] {
+            w.createRelationshipTo( x, MyRelTypes.R2 ),
+            x.createRelationshipTo( y ),
+            y.createRelationshipTo( z, MyRelTypes.R2, Direction.BOTH ),
+            z.createRelationshipTo( w ),
+            w.createRelationshipTo( y, Direction.BOTH ) };
+        PatternNode[] cycleNodes = new PatternNode[] { w, x, y, z };
+        
+        int total = 0;
+        for ( Node startNode : graph )
+        {
+            List<String> expected = matchesWith( MatchEngine.EXPAND, a,
+                startNode, triangleNodes, triangle );
+            assertEquals( expected, matchesWith( MatchEngine.GENERIC_JOIN, a,
+                startNode, triangleNodes, triangle ) );
+            total += expected.size();
+            expected = matchesWith( MatchEngine.EXPAND, w, startNode,
+                cycleNodes, cycle );
+            assertEquals( expected, matchesWith( MatchEngine.GENERIC_JOIN, w,
+                startNode, cycleNodes, cycle ) );
+            total += expected.size();
+        }
+        assertTrue( total > 0 );
+    }
+
+    @Test
+    public void testCountAndExists()
+    {
+        Node a = createInstance( "A" );
+        Node lonely = createInstance( "lonely" );
+        for ( int i = 0; i < 3; i++ )
+        {
+            Node b = createInstance( "B" + i );
+            a.createRelationshipTo( b, MyRelTypes.R1 );
+            // b0 has no optional match, b1 one, b2 two
+            for ( int j = 0; j < i; j++ )
+            {
+                b.createRelationshipTo( createInstance( "C" ), MyRelTypes.R2 );
+            }
+        }
+        
+        PatternNode pA = new PatternNode( "pA" );
+        PatternNode pB = new PatternNode( "pB" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternNode oB = new PatternNode( "pB" );
+        PatternNode oC = new PatternNode( "oC" );
+        oB.createOptionalRelationshipTo( oC, MyRelTypes.R2 );
+        
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern required = matcher.compile( pA );
+        assertEquals( 3, matcher.count( required, a ) );
+        assertTrue( matcher.exists( required, a ) );
+        assertEquals( 0, matcher.count( required, lonely ) );
+        assertTrue( !matcher.exists( required, lonely ) );
+        
+        CompiledPattern withOptional = matcher.compile( pA, null, oB );
+        int count = 0;
+        for ( PatternMatch match : matcher.match( withOptional, a ) )
+        {
+            count++;
+        }
+        assertEquals( 4, count );
+        assertEquals( count, matcher.count( withOptional, a ) );
+        assertTrue( matcher.exists( withOptional, a ) );
+    }
+
+    @Test
+    public void testCountTreeShapedPatterns()
+    {
+        Random random = new Random( 7 );
+        Node root = createInstance( "root" );
+        Node[] middle = new Node[ 8 ];
+        for ( int i = 0; i < middle.length; i++ )
+        {
+            middle[ i ] = createInstance( "middle" + i );
+        }
+        for ( int i = 0; i < 30; i++ )
+        {
+            Node from = i < 10 ? root : middle[ random.nextInt( middle.length ) ];
+            Node to = middle[ random.nextInt( middle.length ) ];
+            if ( from.equals( to ) )
+            {
+                continue;
+            }
+            from.createRelationshipTo( to, MyRelTypes.values()[
+                random.nextInt( 3 ) ] );
+        }
+        
+        // A star from the root with a branch two levels down
+        PatternNode pRoot = new PatternNode();
+        PatternNode pB = new PatternNode();
+        PatternNode pC = new PatternNode();
+        PatternNode pD = new PatternNode();
+        pRoot.createRelationshipTo( pB, MyRelTypes.R1 );
+        pRoot.createRelationshipTo( pC, MyRelTypes.R2, Direction.BOTH );
+        pB.createRelationshipTo( pD, MyRelTypes.R3 );
+        CompiledPattern tree = PatternMatcher.getMatcher().compile( pRoot );
+        
+        // The same shape, but the types repeat so the branches may compete
+        // for the same relationships
+        PatternNode qRoot = new PatternNode();
+        PatternNode qB = new PatternNode();
+        PatternNode qC = new PatternNode();
+        qRoot.createRelationshipTo( qB, MyRelTypes.R1 );
+        qRoot.createRelationshipTo( qC, MyRelTypes.R1 );
+        CompiledPattern repeating = PatternMatcher.getMatcher().compile( qRoot );
+        
+        for ( Node startNode : new Node[] { root, middle[ 0 ], middle[ 1 ] } )
+        {
+            for ( CompiledPattern pattern : new CompiledPattern[] { tree,
+                repeating } )
+            {
+                long count = 0;
+                for ( PatternMatch match : PatternMatcher.getMatcher().match(
+                    pattern, startNode ) )
+                {
+                    count++;
+                }
+                assertEquals( count, PatternMatcher.getMatcher().count(
+                    pattern, startNode ) );
+            }
+        }
+    }
+
+    @Test
+    public void testFactorizedMatchesExpandToTheSameMatches()
+    {
+        Node root = createInstance( "root" );
+        Node[] outs = new Node[ 3 ];
+        Node[] boths = new Node[ 4 ];
+        for ( int i = 0; i < outs.length; i++ )
+        {
+            outs[ i ] = createInstance( "out" + i );
+            root.createRelationshipTo( outs[ i ], MyRelTypes.R1 );
+            for ( int j = 0; j < i; j++ )
+            {
+                outs[ i ].createRelationshipTo( createInstance( "leaf" ),
+                    MyRelTypes.R3 );
+            }
+        }
+        for ( int i = 0; i < boths.length; i++ )
+        {
+            boths[ i ] = createInstance( "both" + i );
+            if ( i % 2 == 0 )
+            {
+                root.createRelationshipTo( boths[ i ], MyRelTypes.R2 );
+            }
+            else
+            {
+                boths[ i ].createRelationshipTo( root, MyRelTypes.R2 );
+            }
+        }
+        
+        PatternNode pRoot = new PatternNode();
+        PatternNode pOut = new PatternNode();
+        PatternNode pBoth = new PatternNode();
+        PatternNode pLeaf = new PatternNode();
+        PatternRelationship r1 = pRoot.createRelationshipTo( pOut,
+            MyRelTypes.R1 );
+        PatternRelationship r2 = pRoot.createRelationshipTo( pBoth,
+            MyRelTypes.R2, Direction.BOTH );
+        PatternRelationship r3 = pOut.createRelationshipTo( pLeaf,
+            MyRelTypes.R3 );
+        PatternNode[] nodes = new PatternNode[] { pRoot, pOut, pBoth, pLeaf };
+        PatternRelationship[] rels = new PatternRelationship[] { r1, r2, r3 };
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pRoot );
+        assertTrue( pattern.isFactorizable() );
+        
+        FactorizedMatch factorized = PatternMatcher.getMatcher()
+            .matchFactorized( pattern, root );
+        assertEquals( root, factorized.getNode() );
+        assertEquals( 2, factorized.getBranches().size() );
+        int alternatives = 0;
+        for ( FactorizedMatch.Branch branch : factorized.getBranches() )
+        {
+            alternatives += branch.size();
+        }
+        // out0 has no leaf, so only out1 and out2 are alternatives
+        assertEquals( 2 + 4, alternatives );
+        // ( 1 + 2 ) leaves times 4 boths
+        assertEquals( 12, factorized.count() );
+        
+        List<String> expanded = new ArrayList<String>();
+        for ( PatternMatch match : factorized.expand() )
+        {
+            expanded.add( signatureOf( match, nodes, rels ) );
+        }
+        Collections.sort( expanded );
+        assertEquals( matchesWith( MatchEngine.EXPAND, pRoot, root, nodes,
+            rels ), expanded );
+        assertNull( PatternMatcher.getMatcher().matchFactorized( pattern,
+            boths[ 0 ] ) );
+        
+        PatternNode qRoot = new PatternNode();
+        qRoot.createRelationshipTo( new PatternNode(), MyRelTypes.R1 );
+        qRoot.createRelationshipTo( new PatternNode(), MyRelTypes.R1 );
+        CompiledPattern repeating = PatternMatcher.getMatcher().compile( qRoot );
+        assertFalse( repeating.isFactorizable() );
+        try
+        {
+            PatternMatcher.getMatcher().matchFactorized( repeating, root );
+            fail( "Patterns with repeating types can't be factorized" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // Good
+        }
+    }
+
+    @Test
+    public void testGroupedOptionalMatches()
+    {
+        Node a = createInstance( "A" );
+        Node c = createInstance( "C" );
+        a.createRelationshipTo( c, MyRelTypes.R2 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            a.createRelationshipTo( createInstance( "B" + i ), MyRelTypes.R1 );
+        }
+        for ( int i = 0; i < 4; i++ )
+        {
+            a.createRelationshipTo( createInstance( "F" + i ), MyRelTypes.R3 );
+        }
+        
+        PatternNode pA = new PatternNode( "pA" );
+        PatternNode pC = new PatternNode( "pC" );
+        pA.createRelationshipTo( pC, MyRelTypes.R2 );
+        PatternNode oA1 = new PatternNode( "pA" );
+        PatternNode oB1 = new PatternNode( "pB" );
+        oA1.createOptionalRelationshipTo( oB1, MyRelTypes.R1 );
+        PatternNode oA2 = new PatternNode( "pA" );
+        PatternNode oF2 = new PatternNode( "pF" );
+        oA2.createOptionalRelationshipTo( oF2, MyRelTypes.R3 );
+        PatternNode oC3 = new PatternNode( "pC" );
+        PatternNode oD3 = new PatternNode( "pD" );
+        oC3.createOptionalRelationshipTo( oD3, MyRelTypes.R1 );
+        
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( pA, null, oA1, oA2, oC3 );
+        int merged = 0;
+        for ( PatternMatch match : matcher.match( pattern, a ) )
+        {
+            merged++;
+        }
+        assertEquals( 12, merged );
+        
+        int groups = 0;
+        for ( GroupedMatch group : matcher.matchGrouped( pattern, a ) )
+        {
+            groups++;
+            assertEquals( c, group.getMatch().getNodeFor( pC ) );
+            assertEquals( 3, group.getOptionalRoots().size() );
+            Set<Node> bs = new HashSet<Node>();
+            for ( PatternMatch optional : group.getOptionalMatches( oA1 ) )
+            {
+                assertEquals( a, optional.getNodeFor( oA1 ) );
+                bs.add( optional.getNodeFor( oB1 ) );
+            }
+            assertEquals( 3, bs.size() );
+            Set<Node> fs = new HashSet<Node>();
+            for ( PatternMatch optional : group.getOptionalMatches( oA2 ) )
+            {
+                fs.add( optional.getNodeFor( oF2 ) );
+            }
+            assertEquals( 4, fs.size() );
+            assertTrue( !group.getOptionalMatches( oC3 ).iterator().hasNext() );
+            try
+            {
+                group.getOptionalMatches( pC );
+                fail( "pC isn't an optional root" );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // Good
+            }
+        }
+        assertEquals( 1, groups );
+    }
+
+    @Test
+    public void testOptionalMatchesAreSearchedOncePerAttachNode()
+    {
+        Node a = createInstance( "A" );
+        for ( int i = 0; i < 5; i++ )
+        {
+            a.createRelationshipTo( createInstance( "B" + i ), MyRelTypes.R1 );
+        }
+        for ( int i = 0; i < 3; i++ )
+        {
+            a.createRelationshipTo( createInstance( "C" + i ), MyRelTypes.R2 );
+        }
+        for ( int i = 0; i < 2; i++ )
+        {
+            a.createRelationshipTo( createInstance( "D" + i ), MyRelTypes.R3 );
+        }
+        
+        PatternNode pA = new PatternNode( "pA" );
+        PatternNode pB = new PatternNode( "pB" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternNode oA1 = new PatternNode( "pA" );
+        PatternNode oC = new PatternNode( "oC" );
+        oA1.createOptionalRelationshipTo( oC, MyRelTypes.R2 );
+        CountingMatcher counting = new CountingMatcher( true );
+        oC.addPropertyConstraint( "name", counting );
+        PatternNode oA2 = new PatternNode( "pA" );
+        PatternNode oD = new PatternNode( "oD" );
+        oA2.createOptionalRelationshipTo( oD, MyRelTypes.R3 );
+        
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( pA, null, oA1, oA2 );
+        Set<String> found = new HashSet<String>();
+        for ( PatternMatch match : matcher.match( pattern, a ) )
+        {
+            found.add( match.getNodeFor( pB ).getProperty( "name" ) + "/" +
+                match.getNodeFor( oC ).getProperty( "name" ) + "/" +
+                match.getNodeFor( oD ).getProperty( "name" ) );
+        }
+        assertEquals( 5 * 3 * 2, found.size() );
+        // Searched once for the first match of pB, then remembered
+        assertEquals( 3, counting.count );
+        
+        // Too many optional matches to remember, so they are searched again
+        // for every match of the required part
+        Node x = createInstance( "X" );
+        x.createRelationshipTo( createInstance( "Y0" ), MyRelTypes.R1 );
+        x.createRelationshipTo( createInstance( "Y1" ), MyRelTypes.R1 );
+        for ( int i = 0; i < 300; i++ )
+        {
+            x.createRelationshipTo( createInstance( "Z" + i ), MyRelTypes.R2 );
+        }
+        counting = new CountingMatcher( true );
+        PatternNode oZ = new PatternNode( "oC" );
+        oA1 = new PatternNode( "pA" );
+        oA1.createOptionalRelationshipTo( oZ, MyRelTypes.R2 );
+        oZ.addPropertyConstraint( "name", counting );
+        pattern = matcher.compile( pA, null, oA1 );
+        int count = 0;
+        for ( PatternMatch match : matcher.match( pattern, x ) )
+        {
+            count++;
+        }
+        assertEquals( 2 * 300, count );
+        assertEquals( 2 * 300, counting.count );
+    }
+
+    @Test
+    public void testSingleNodeFiltersAreEvaluatedWhenTheNodeIsBound()
+    {
+        Node a = createInstance( "A" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node b = createInstance( "B" + i );
+            a.createRelationshipTo( b, MyRelTypes.R1 );
+            b.createRelationshipTo( createInstance( "C" + i ), MyRelTypes.R2 );
+        }
+        
+        PatternGroup group = new PatternGroup();
+        PatternNode pA = new PatternNode( group, "a" );
+        PatternNode pB = new PatternNode( group, "b" );
+        PatternNode pC = new PatternNode( group, "c" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        pB.createRelationshipTo( pC, MyRelTypes.R2 );
+        CountingMatcher counting = new CountingMatcher( true );
+        pC.addPropertyConstraint( "name", counting );
+        Map<String, PatternNode> objectVariables =
+            new HashMap<String, PatternNode>();
+        objectVariables.put( "a", pA );
+        objectVariables.put( "b", pB );
+        group.addFilter( new CompareExpression( "b", "name", "<=", "B5" ) );
+        
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( pA, objectVariables );
+        assertEquals( 6, matcher.count( pattern, a ) );
+        // Only the b nodes which pass the filter are expanded from
+        assertEquals( 6, counting.count );
+        
+        // Reads both a and b, so it's evaluated on complete matches
+        group.addFilter( new FilterBinaryNode( new CompareExpression( "a",
+            "name", "=", "nope" ), false, new CompareExpression( "b", "name",
+            ">=", "B3" ) ) );
+        pattern = matcher.compile( pA, objectVariables );
+        counting.count = 0;
+        Set<String> found = new HashSet<String>();
+        for ( PatternMatch match : matcher.match( pattern, a ) )
+        {
+            found.add( ( String ) match.getNodeFor( pB ).getProperty( "name" ) );
+        }
+        assertEquals( 3, found.size() );
+        assertTrue( found.contains( "B3" ) && found.contains( "B5" ) );
+        assertEquals( 6, counting.count );
+    }
+
+    @Test
+    public void testFiltersOnNumbersAndArrays()
+    {
+        Node a = createInstance( "A" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node b = createInstance( "B" + i );
+            b.setProperty( "age", 5 * i );
+            b.setProperty( "scores", new long[] { i, 100 + i } );
+            b.setProperty( "tags", new String[] { "t" + i, "common" } );
+            a.createRelationshipTo( b, MyRelTypes.R1 );
+        }
+        
+        // Numbers are compared by value, 5 * i >= 20 means i >= 4
+        assertEquals( 6, countFiltered( a, new CompareExpression( "b", "age",
+            ">=", 20 ) ) );
+        // Any item of an array property may match, i < 3 or 100 + i < 3
+        assertEquals( 3, countFiltered( a, new CompareExpression( "b",
+            "scores", "<", 3L ) ) );
+        assertEquals( 10, countFiltered( a, new CompareExpression( "b",
+            "tags", "=", "common" ) ) );
+        assertEquals( 2, countFiltered( a, new RegexPattern( "b", "tags",
+            "^T[78]$", "i" ) ) );
+        assertEquals( 0, countFiltered( a, new CompareExpression( "b",
+            "tags", "~", "common" ) ) );
+        // Both operands read b, so it's one expression for b
+        assertEquals( 2, countFiltered( a, new FilterBinaryNode(
+            new CompareExpression( "b", "age", ">", 35 ), true,
+            new FilterBinaryNode( new CompareExpression( "b", "age", "<", 0 ),
+            false, new CompareExpression( "b", "age", "<=", 45 ) ) ) ) );
+    }
+    
+    private int countFiltered( Node a, FilterExpression filter )
+    {
+        PatternGroup group = new PatternGroup();
+        PatternNode pA = new PatternNode( group, "a" );
+        PatternNode pB = new PatternNode( group, "b" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        group.addFilter( filter );
+        Map<String, PatternNode> objectVariables =
+            new HashMap<String, PatternNode>();
+        objectVariables.put( "b", pB );
+        int count = 0;
+        for ( PatternMatch match : PatternMatcher.getMatcher().match( pA, a,
+            objectVariables ) )
+        {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testRangeInAndPrefixConstraints()
+    {
+        Node a = createInstance( "A" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node b = createInstance( "B" + i );
+            b.setProperty( "age", 5 * i );
+            a.createRelationshipTo( b, MyRelTypes.R1 );
+        }
+        
+        PatternNode pA = new PatternNode();
+        PatternNode pB = new PatternNode();
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        pB.addPropertyConstraint( "age", CommonValueMatchers.range( 10, 30 ) );
+        Set<Object> names = new HashSet<Object>();
+        names.add( "B1" );
+        names.add( "B2" );
+        names.add( "B3" );
+        pB.addPropertyConstraint( "name", CommonValueMatchers.in( names ) );
+        assertEquals( 2, PatternMatcher.getMatcher().count( pA, a ) );
+        
+        pB = new PatternNode();
+        pA = new PatternNode();
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        pB.addPropertyConstraint( "name", CommonValueMatchers.prefix( "B" ) );
+        pB.addPropertyConstraint( "age", CommonValueMatchers.range( null,
+            true, 10, false ) );
+        assertEquals( 2, PatternMatcher.getMatcher().count( pA, a ) );
+    }
+
+    @Test
+    public void testParallelMatchStreamsMoreMatchesThanItQueues()
+    {
+        Node hub = createInstance( "hub" );
+        Set<Node> expected = new HashSet<Node>();
+        for ( int i = 0; i < 200; i++ )
+        {
+            Node spoke = createInstance( "spoke" + i );
+            hub.createRelationshipTo( spoke, MyRelTypes.R1 );
+            expected.add( spoke );
+        }
+        // The worker threads only see committed data
+        tx.success();
+        tx.finish();
+        tx = graphDb.beginTx();
+        
+        PatternNode pHub = new PatternNode();
+        PatternNode pSpoke = new PatternNode();
+        pHub.createRelationshipTo( pSpoke, MyRelTypes.R1 );
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( pHub );
+        
+        ExecutorService pool = Executors.newFixedThreadPool( 2 );
+        Executor callerRuns = new Executor()
+        {
+            public void execute( Runnable command )
+            {
+                command.run();
+            }
+        };
+        try
+        {
+            for ( Executor executor : new Executor[] { pool, callerRuns } )
+            {
+                // One part in flight, with more matches than fit in the queue
+                Set<Node> found = new HashSet<Node>();
+                for ( PatternMatch match : PatternMatcher.getMatcher().match(
+                    pattern, Collections.singleton( hub ), executor, 1 ) )
+                {
+                    assertTrue( found.add( match.getNodeFor( pSpoke ) ) );
+                }
+                assertEquals( expected, found );
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMergeMatchesOfDifferentPatterns()
+    {
+        assertFalse( PatternMatch.merge().getElements().iterator().hasNext() );
+        
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        Node c = createInstance( "C" );
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        Relationship bc = b.createRelationshipTo( c, MyRelTypes.R2 );
+        
+        PatternNode pA = new PatternNode( "a" );
+        PatternNode pB = new PatternNode( "b" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternNode pB2 = new PatternNode( "b" );
+        PatternNode pC = new PatternNode( "c" );
+        PatternRelationship pBC = pB2.createRelationshipTo( pC,
+            MyRelTypes.R2 );
+        
+        PatternMatch first = doMatch( pA, a ).iterator().next();
+        PatternMatch second = doMatch( pB2, b ).iterator().next();
+        PatternMatch merged = PatternMatch.merge( first, second );
+        assertEquals( a, merged.getNodeFor( pA ) );
+        assertEquals( b, merged.getNodeFor( pB ) );
+        // Left out since the first match has a node labelled "b" already
+        assertNull( merged.getNodeFor( pB2 ) );
+        assertEquals( c, merged.getNodeFor( pC ) );
+        assertEquals( bc, merged.getRelationshipFor( pBC ) );
+        int count = 0;
+        for ( PatternElement element : merged.getElements() )
+        {
+            count++;
+        }
+        assertEquals( 3, count );
+    }
+
+    @Test
+    public void testFilterOnOptionalNodeFiltersMergedMatch()
+    {
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        Node young = createInstance( "young" );
+        young.setProperty( "age", 3 );
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        b.createRelationshipTo( young, MyRelTypes.R2 );
+        
+        PatternGroup group = new PatternGroup();
+        PatternNode pA = new PatternNode( group, "a" );
+        PatternNode pB = new PatternNode( group, "b" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternNode oB = new PatternNode( group, "b" );
+        PatternNode oC = new PatternNode( group, "c" );
+        oB.createOptionalRelationshipTo( oC, MyRelTypes.R2 );
+        group.addFilter( new CompareExpression( "c", "age", ">", 5 ) );
+        Map<String, PatternNode> objectVariables =
+            new HashMap<String, PatternNode>();
+        objectVariables.put( "c", oC );
+        
+        // The merged match is filtered, the optional node isn't just left out
+        int count = 0;
+        for ( PatternMatch match : PatternMatcher.getMatcher().match( pA, a,
+            objectVariables, oB ) )
+        {
+            count++;
+        }
+        assertEquals( 0, count );
+        
+        Node old = createInstance( "old" );
+        old.setProperty( "age", 7 );
+        b.createRelationshipTo( old, MyRelTypes.R2 );
+        count = 0;
+        for ( PatternMatch match : PatternMatcher.getMatcher().match( pA, a,
+            objectVariables, oB ) )
+        {
+            assertEquals( old, match.getNodeFor( oC ) );
+            count++;
+        }
+        assertEquals( 1, count );
+    }
+
+    @Test
+    public void testGroupedMatchFiltersOptionalMatchesByCrossNodeFilter()
+    {
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        b.setProperty( "age", 2 );
+        Node young = createInstance( "young" );
+        young.setProperty( "age", 3 );
+        Node old = createInstance( "old" );
+        old.setProperty( "age", 7 );
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        b.createRelationshipTo( young, MyRelTypes.R2 );
+        b.createRelationshipTo( old, MyRelTypes.R2 );
+        
+        PatternGroup group = new PatternGroup();
+        PatternNode pA = new PatternNode( group, "a" );
+        PatternNode pB = new PatternNode( group, "b" );
+        pA.createRelationshipTo( pB, MyRelTypes.R1 );
+        PatternNode oB = new PatternNode( group, "b" );
+        PatternNode oC = new PatternNode( group, "c" );
+        oB.createOptionalRelationshipTo( oC, MyRelTypes.R2 );
+        group.addFilter( new FilterBinaryNode( new CompareExpression( "b",
+            "age", ">", 1 ), true, new CompareExpression( "c", "age", ">",
+            5 ) ) );
+        Map<String, PatternNode> objectVariables =
+            new HashMap<String, PatternNode>();
+        objectVariables.put( "b", pB );
+        objectVariables.put( "c", oC );
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( pA, objectVariables, oB );
+        
+        int groups = 0;
+        for ( GroupedMatch grouped : matcher.matchGrouped( pattern, a ) )
+        {
+            groups++;
+            assertEquals( b, grouped.getMatch().getNodeFor( pB ) );
+            Set<Node> cs = new HashSet<Node>();
+            for ( PatternMatch optional : grouped.getOptionalMatches( oB ) )
+            {
+                cs.add( optional.getNodeFor( oC ) );
+            }
+            assertEquals( Collections.singleton( old ), cs );
+        }
+        assertEquals( 1, groups );
+    }
+
+    @Test
+    public void testFilterComparesIntegralNumbersExactly()
+    {
+        long twoTo53 = 9007199254740992L;
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        b.setProperty( "big", twoTo53 );
+        b.setProperty( "bigs", new long[] { 1, twoTo53 } );
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        
+        assertEquals( 0, countFiltered( a, new CompareExpression( "b", "big",
+            "=", twoTo53 + 1 ) ) );
+        assertEquals( 0, countFiltered( a, new CompareExpression( "b", "big",
+            ">", twoTo53 ) ) );
+        assertEquals( 1, countFiltered( a, new CompareExpression( "b", "big",
+            "<", twoTo53 + 1 ) ) );
+        assertEquals( 0, countFiltered( a, new CompareExpression( "b", "bigs",
+            ">", twoTo53 ) ) );
+        assertEquals( 1, countFiltered( a, new CompareExpression( "b", "big",
+            ">", 9.0E15 ) ) );
+    }
+
+    @Test
+    public void testFilterTurnsNumbersIntoStringsLikeToString()
+    {
+        Node a = createInstance( "A" );
+        Node b = createInstance( "B" );
+        b.setProperty( "weight", 3.0 );
+        b.setProperty( "ratios", new float[] { 0.1f } );
+        a.createRelationshipTo( b, MyRelTypes.R1 );
+        
+        assertEquals( 1, countFiltered( a, new CompareExpression( "b",
+            "weight", "=", "3.0" ) ) );
+        assertEquals( 0, countFiltered( a, new CompareExpression( "b",
+            "weight", "=", "3" ) ) );
+        assertEquals( 1, countFiltered( a, new RegexPattern( "b", "weight",
+            "^3\\.0$", "" ) ) );
+        assertEquals( 1, countFiltered( a, new RegexPattern( "b", "ratios",
+            "^0\\.1$", "" ) ) );
+        // A numeric operand still compares by value
+        assertEquals( 1, countFiltered( a, new CompareExpression( "b",
+            "weight", "=", 3 ) ) );
+    }
 }
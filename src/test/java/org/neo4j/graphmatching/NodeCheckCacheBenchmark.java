@@ -0,0 +1,199 @@
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Shows that caching node checks and property values per search pays for
+ * itself. Every hub has a number of spokes which all point at the same
+ * targets, so that matching hub -> spoke -> target checks every target once
+ * per spoke. It compares reading the target properties every time against
+ * reading them through a {@link PropertyCache}, and counts how many times
+ * the value matcher of the target is evaluated when matching the pattern,
+ * against the number of target checks the search makes.
+ *
+ * Run it with the main method, it's not a test.
+ */
+public class NodeCheckCacheBenchmark
+{
+    private static enum RelTypes implements RelationshipType
+    {
+        SPOKE, TARGET
+    }
+
+    private static final int HUBS = 20;
+    private static final int SPOKES = 50;
+    private static final int TARGETS = 50;
+    private static final int ROUNDS = 10;
+
+    public static void main( String[] args )
+    {
+        GraphDatabaseService graphDb = new EmbeddedGraphDatabase(
+            "target/var/benchmark-node-checks" );
+        try
+        {
+            List<Node> hubs = createHubs( graphDb );
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                for ( int round = 0; round < ROUNDS; round++ )
+                {
+                    System.out.println( "uncached properties: " +
+                        timeUncached( hubs ) + " ms, PropertyCache: " +
+                        timeCached( hubs ) + " ms, " + timeMatching( hubs ) );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            graphDb.shutdown();
+        }
+    }
+
+    private static List<Node> createHubs( GraphDatabaseService graphDb )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            List<Node> hubs = new ArrayList<Node>();
+            for ( int i = 0; i < HUBS; i++ )
+            {
+                Node hub = graphDb.createNode();
+                List<Node> targets = new ArrayList<Node>();
+                for ( int j = 0; j < TARGETS; j++ )
+                {
+                    Node target = graphDb.createNode();
+                    target.setProperty( "name", "target" + ( j % 2 ) );
+                    targets.add( target );
+                }
+                for ( int j = 0; j < SPOKES; j++ )
+                {
+                    Node spoke = graphDb.createNode();
+                    hub.createRelationshipTo( spoke, RelTypes.SPOKE );
+                    for ( Node target : targets )
+                    {
+                        spoke.createRelationshipTo( target, RelTypes.TARGET );
+                    }
+                }
+                hubs.add( hub );
+            }
+            tx.success();
+            return hubs;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Mimics the property reads of one search per hub, where every target
+     * is read again for every spoke that reaches it.
+     */
+    private static long timeUncached( List<Node> hubs )
+    {
+        long start = System.currentTimeMillis();
+        int hits = 0;
+        for ( Node hub : hubs )
+        {
+            for ( Node spoke : neighbours( hub, RelTypes.SPOKE ) )
+            {
+                for ( Node target : neighbours( spoke, RelTypes.TARGET ) )
+                {
+                    if ( "target0".equals( target.getProperty( "name",
+                        null ) ) )
+                    {
+                        hits++;
+                    }
+                }
+            }
+        }
+        return System.currentTimeMillis() - start + ( hits < 0 ? 1 : 0 );
+    }
+
+    private static long timeCached( List<Node> hubs )
+    {
+        long start = System.currentTimeMillis();
+        int hits = 0;
+        for ( Node hub : hubs )
+        {
+            PropertyCache properties = new PropertyCache(
+                PatternFinder.MAX_CACHED_PROPERTIES );
+            for ( Node spoke : neighbours( hub, RelTypes.SPOKE ) )
+            {
+                for ( Node target : neighbours( spoke, RelTypes.TARGET ) )
+                {
+                    if ( "target0".equals( properties.getProperty( target,
+                        "name" ) ) )
+                    {
+                        hits++;
+                    }
+                }
+            }
+        }
+        return System.currentTimeMillis() - start + ( hits < 0 ? 1 : 0 );
+    }
+
+    private static String timeMatching( List<Node> hubs )
+    {
+        final int[] evaluations = new int[ 1 ];
+        PatternNode hub = new PatternNode();
+        PatternNode spoke = new PatternNode();
+        PatternNode target = new PatternNode();
+        hub.createRelationshipTo( spoke, RelTypes.SPOKE );
+        spoke.createRelationshipTo( target, RelTypes.TARGET );
+        target.addPropertyConstraint( "name", new ValueMatcher()
+        {
+            public boolean matches( Object value )
+            {
+                evaluations[ 0 ]++;
+                return "target0".equals( value );
+            }
+        } );
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( hub );
+
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for ( Node node : hubs )
+        {
+            for ( PatternMatch match : matcher.match( pattern, node ) )
+            {
+                count++;
+            }
+        }
+        int expected = HUBS * SPOKES * TARGETS / 2;
+        if ( count != expected )
+        {
+            throw new IllegalStateException( "Expected " + expected +
+                " matches, found " + count );
+        }
+        return "matching: " + ( System.currentTimeMillis() - start ) +
+            " ms, " + evaluations[ 0 ] + " evaluations for " +
+            HUBS * SPOKES * TARGETS + " target checks";
+    }
+
+    private static List<Node> neighbours( Node node, RelationshipType type )
+    {
+        List<Node> neighbours = new ArrayList<Node>();
+        for ( Relationship rel : node.getRelationships(
+            type, Direction.OUTGOING ) )
+        {
+            neighbours.add( rel.getEndNode() );
+        }
+        return neighbours;
+    }
+}
@@ -0,0 +1,167 @@
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Times matching a pattern with several optional branches, where every
+ * match of the required part is merged with every combination of the
+ * optional matches. The graph is a number of hubs, each with a few required
+ * neighbours and more optional ones of three kinds, so that most of the
+ * time goes to finding the attach nodes of the optional parts and merging
+ * the optional matches into the results. Grouped matching of the same
+ * pattern is timed for comparison.
+ *
+ * Run it with the main method, it's not a test.
+ */
+public class OptionalMatchingBenchmark
+{
+    private static enum RelTypes implements RelationshipType
+    {
+        REQUIRED,
+        FIRST,
+        SECOND,
+        THIRD
+    }
+
+    private static final int HUBS = 200;
+    private static final int REQUIRED = 4;
+    private static final int OPTIONAL = 6;
+    private static final int ROUNDS = 10;
+
+    public static void main( String[] args )
+    {
+        GraphDatabaseService graphDb = new EmbeddedGraphDatabase(
+            "target/var/benchmark-optional" );
+        try
+        {
+            List<Node> hubs = createHubs( graphDb );
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                PatternMatcher matcher = PatternMatcher.getMatcher();
+                CompiledPattern pattern = createPattern( matcher );
+                for ( int round = 0; round < ROUNDS; round++ )
+                {
+                    System.out.println( "merged: " + timeMerged( matcher,
+                        pattern, hubs ) + " ms, grouped: " + timeGrouped(
+                        matcher, pattern, hubs ) + " ms" );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            graphDb.shutdown();
+        }
+    }
+
+    private static List<Node> createHubs( GraphDatabaseService graphDb )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            List<Node> hubs = new ArrayList<Node>();
+            for ( int i = 0; i < HUBS; i++ )
+            {
+                Node hub = graphDb.createNode();
+                for ( int j = 0; j < REQUIRED; j++ )
+                {
+                    hub.createRelationshipTo( graphDb.createNode(),
+                        RelTypes.REQUIRED );
+                }
+                for ( RelTypes type : new RelTypes[] { RelTypes.FIRST,
+                    RelTypes.SECOND, RelTypes.THIRD } )
+                {
+                    for ( int j = 0; j < OPTIONAL; j++ )
+                    {
+                        hub.createRelationshipTo( graphDb.createNode(), type );
+                    }
+                }
+                hubs.add( hub );
+            }
+            tx.success();
+            return hubs;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private static CompiledPattern createPattern( PatternMatcher matcher )
+    {
+        PatternNode hub = new PatternNode( "hub" );
+        hub.createRelationshipTo( new PatternNode( "required" ),
+            RelTypes.REQUIRED );
+        List<PatternNode> optional = new ArrayList<PatternNode>();
+        int counter = 0;
+        for ( RelTypes type : new RelTypes[] { RelTypes.FIRST,
+            RelTypes.SECOND, RelTypes.THIRD } )
+        {
+            PatternNode optionalHub = new PatternNode( "hub" );
+            optionalHub.createOptionalRelationshipTo( new PatternNode(
+                "optional" + counter++ ), type );
+            optional.add( optionalHub );
+        }
+        return matcher.compile( hub, null, optional );
+    }
+
+    private static long timeMerged( PatternMatcher matcher,
+        CompiledPattern pattern, List<Node> hubs )
+    {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        for ( Node hub : hubs )
+        {
+            for ( PatternMatch match : matcher.match( pattern, hub ) )
+            {
+                count++;
+            }
+        }
+        long expected = (long) HUBS * REQUIRED * OPTIONAL * OPTIONAL * OPTIONAL;
+        if ( count != expected )
+        {
+            throw new IllegalStateException( "Expected " + expected +
+                " matches, found " + count );
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long timeGrouped( PatternMatcher matcher,
+        CompiledPattern pattern, List<Node> hubs )
+    {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        for ( Node hub : hubs )
+        {
+            for ( GroupedMatch group : matcher.matchGrouped( pattern, hub ) )
+            {
+                for ( PatternNode root : group.getOptionalRoots() )
+                {
+                    for ( PatternMatch match : group.getOptionalMatches( root ) )
+                    {
+                        count++;
+                    }
+                }
+            }
+        }
+        long expected = (long) HUBS * REQUIRED * OPTIONAL * 3;
+        if ( count != expected )
+        {
+            throw new IllegalStateException( "Expected " + expected +
+                " optional matches, found " + count );
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,160 @@
+package org.neo4j.graphmatching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestCommonValueMatchers
+{
+    @Test
+    public void exactAnyScansPrimitiveArrays()
+    {
+        ValueMatcher matcher = CommonValueMatchers.exactAnyOf( 3, 7L, 2.5d,
+            1.5f, ( short ) 4, ( byte ) 5, 'c', true, "s" );
+        assertTrue( matcher.matches( new int[] { 1, 3 } ) );
+        assertTrue( matcher.matches( new long[] { 7 } ) );
+        assertTrue( matcher.matches( new double[] { 0, 2.5 } ) );
+        assertTrue( matcher.matches( new float[] { 1.5f } ) );
+        assertTrue( matcher.matches( new short[] { 4 } ) );
+        assertTrue( matcher.matches( new byte[] { 5 } ) );
+        assertTrue( matcher.matches( new char[] { 'a', 'c' } ) );
+        assertTrue( matcher.matches( new boolean[] { false, true } ) );
+        assertTrue( matcher.matches( new String[] { null, "s" } ) );
+        assertTrue( matcher.matches( 3 ) );
+        assertTrue( matcher.matches( "s" ) );
+        
+        // Only values of the same type are equal, like with equals()
+        assertFalse( matcher.matches( new long[] { 3 } ) );
+        assertFalse( matcher.matches( new int[] { 7 } ) );
+        assertFalse( matcher.matches( new double[] { 1.5 } ) );
+        assertFalse( matcher.matches( new boolean[] { false } ) );
+        assertFalse( matcher.matches( 3L ) );
+        assertFalse( matcher.matches( new int[ 0 ] ) );
+        assertFalse( matcher.matches( null ) );
+    }
+
+    @Test
+    public void manyExactAnyValuesAreLookedUp()
+    {
+        Object[] values = new Object[ 100 ];
+        long[] longs = new long[ 100 ];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[ i ] = i % 2 == 0 ? "v" + i : ( Object ) ( long ) -i;
+            longs[ i ] = -i;
+        }
+        ValueMatcher matcher = CommonValueMatchers.exactAnyOf( values );
+        assertTrue( matcher.matches( "v42" ) );
+        assertFalse( matcher.matches( "v43" ) );
+        assertTrue( matcher.matches( new String[] { "x", "v98" } ) );
+        assertTrue( matcher.matches( -43L ) );
+        assertFalse( matcher.matches( -42L ) );
+        assertTrue( matcher.matches( longs ) );
+        assertFalse( matcher.matches( new long[] { -42, 1 } ) );
+        assertTrue( CommonValueMatchers.cost( matcher ) <
+            CommonValueMatchers.REGEX_COST );
+    }
+
+    @Test
+    public void rangeComparesNumbersByValue()
+    {
+        RangeMatcher matcher = CommonValueMatchers.range( 10, true, 20L,
+            false );
+        assertTrue( matcher.matches( 10 ) );
+        assertTrue( matcher.matches( 19.5d ) );
+        assertFalse( matcher.matches( 20 ) );
+        assertFalse( matcher.matches( 9L ) );
+        assertTrue( matcher.matches( new long[] { 1, 15 } ) );
+        assertTrue( matcher.matches( new double[] { 10.0 } ) );
+        assertFalse( matcher.matches( new int[] { 5, 25 } ) );
+        assertFalse( matcher.matches( "15" ) );
+        assertFalse( matcher.matches( null ) );
+        assertEquals( 10, matcher.getLower() );
+        assertTrue( matcher.isLowerInclusive() );
+        assertFalse( matcher.isUpperInclusive() );
+        
+        matcher = CommonValueMatchers.range( "b", null );
+        assertTrue( matcher.matches( "b" ) );
+        assertTrue( matcher.matches( new String[] { "a", "zz" } ) );
+        assertFalse( matcher.matches( "a" ) );
+        assertFalse( matcher.matches( 5 ) );
+        assertNull( matcher.getUpper() );
+        assertTrue( matcher.estimatedSelectivity() > CommonValueMatchers
+            .range( "b", "c" ).estimatedSelectivity() );
+    }
+
+    @Test
+    public void inLooksIntegralsUpByValue()
+    {
+        Set<Object> values = new HashSet<Object>();
+        values.add( 3 );
+        values.add( -1L );
+        values.add( "x" );
+        InMatcher matcher = CommonValueMatchers.in( values );
+        assertTrue( matcher.matches( 3L ) );
+        assertTrue( matcher.matches( ( byte ) -1 ) );
+        assertTrue( matcher.matches( new long[] { 7, 3 } ) );
+        assertTrue( matcher.matches( new int[] { -1 } ) );
+        assertTrue( matcher.matches( new String[] { "y", "x" } ) );
+        assertTrue( matcher.matches( "x" ) );
+        assertFalse( matcher.matches( 4 ) );
+        assertFalse( matcher.matches( 3.0d ) );
+        assertFalse( matcher.matches( new long[] { 4 } ) );
+        assertFalse( matcher.matches( null ) );
+        assertEquals( values, matcher.getValues() );
+    }
+
+    @Test
+    public void prefixMatchesStringsAndStringArrays()
+    {
+        PrefixMatcher matcher = CommonValueMatchers.prefix( "ab" );
+        assertTrue( matcher.matches( "abc" ) );
+        assertTrue( matcher.matches( new String[] { "x", "ab" } ) );
+        assertFalse( matcher.matches( "a" ) );
+        assertFalse( matcher.matches( 12 ) );
+        assertFalse( matcher.matches( null ) );
+        assertEquals( "ab", matcher.getPrefix() );
+        assertTrue( matcher.estimatedSelectivity() > CommonValueMatchers
+            .prefix( "abcd" ).estimatedSelectivity() );
+    }
+
+    @Test
+    public void newMatchersAreCheapAndImplyHas()
+    {
+        assertTrue( CommonValueMatchers.cost( CommonValueMatchers.range( 1,
+            2 ) ) < CommonValueMatchers.UNKNOWN_COST );
+        PropertyCheck check = PropertyCheck.compile( new ValueMatcher[] {
+            CommonValueMatchers.has(), CommonValueMatchers.prefix( "a" ) } );
+        assertTrue( check instanceof PropertyCheck.Generic );
+    }
+
+    @Test
+    public void rangesCompareIntegralNumbersExactly()
+    {
+        long twoTo53 = 9007199254740992L;
+        ValueMatcher above = CommonValueMatchers.range( twoTo53 + 1, null );
+        assertFalse( above.matches( twoTo53 ) );
+        assertFalse( above.matches( new long[] { twoTo53 } ) );
+        assertTrue( above.matches( twoTo53 + 1 ) );
+        assertTrue( above.matches( Long.MAX_VALUE ) );
+        
+        ValueMatcher below = CommonValueMatchers.range( null, true,
+            Long.MAX_VALUE - 1, false );
+        assertTrue( below.matches( Long.MAX_VALUE - 2 ) );
+        assertFalse( below.matches( Long.MAX_VALUE - 1 ) );
+        
+        // Integral and floating point numbers are compared by value
+        ValueMatcher half = CommonValueMatchers.range( 0.5, 2 );
+        assertFalse( half.matches( 0 ) );
+        assertTrue( half.matches( 1L ) );
+        assertTrue( half.matches( 2.0 ) );
+        assertFalse( half.matches( 2.5f ) );
+        assertFalse( half.matches( Double.NaN ) );
+    }
+}
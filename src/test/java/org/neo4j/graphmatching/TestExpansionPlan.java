@@ -0,0 +1,121 @@
+package org.neo4j.graphmatching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.RelationshipType;
+
+public class TestExpansionPlan
+{
+    private static final RelationshipType KNOWS =
+        DynamicRelationshipType.withName( "KNOWS" );
+    private static final RelationshipType WORKS_AT =
+        DynamicRelationshipType.withName( "WORKS_AT" );
+
+    @Test
+    public void constrainedAndTypedStepsGoFirst()
+    {
+        PatternNode me = new PatternNode( "me" );
+        PatternNode anyone = new PatternNode( "anyone" );
+        PatternNode friend = new PatternNode( "friend" );
+        PatternNode company = new PatternNode( "company" );
+        PatternRelationship any = me.createRelationshipTo( anyone );
+        PatternRelationship knows = me.createRelationshipTo( friend, KNOWS,
+            Direction.BOTH );
+        PatternRelationship worksAt = me.createRelationshipTo( company,
+            WORKS_AT );
+        company.addPropertyConstraint( "name",
+            CommonValueMatchers.exact( "Neo" ) );
+
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( me );
+        ExpansionPlan plan = pattern.plan();
+        assertEquals( 3, plan.length() );
+        assertEquals( worksAt, pattern.relationship( plan.relationship( 0 ) ) );
+        assertEquals( knows, pattern.relationship( plan.relationship( 1 ) ) );
+        assertEquals( any, pattern.relationship( plan.relationship( 2 ) ) );
+    }
+
+    @Test
+    public void moreSelectiveConstraintsGoFirst()
+    {
+        PatternNode me = new PatternNode( "me" );
+        PatternNode friend = new PatternNode( "friend" );
+        PatternNode company = new PatternNode( "company" );
+        me.createRelationshipTo( friend, KNOWS );
+        PatternRelationship worksAt = me.createRelationshipTo( company,
+            KNOWS );
+        // One constraint each, but has() lets most nodes through
+        friend.addPropertyConstraint( "name", CommonValueMatchers.has() );
+        company.addPropertyConstraint( "name",
+            CommonValueMatchers.exact( "Neo" ) );
+
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( me );
+        ExpansionPlan plan = pattern.plan();
+        assertEquals( worksAt, pattern.relationship( plan.relationship( 0 ) ) );
+    }
+
+    @Test
+    public void cycleClosingStepsGoFirst()
+    {
+        PatternNode a = new PatternNode( "a" );
+        PatternNode b = new PatternNode( "b" );
+        PatternNode c = new PatternNode( "c" );
+        PatternNode d = new PatternNode( "d" );
+        PatternRelationship toD = a.createRelationshipTo( d );
+        a.createRelationshipTo( b, KNOWS );
+        b.createRelationshipTo( c, KNOWS );
+        c.createRelationshipTo( a, KNOWS );
+
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile( a );
+        ExpansionPlan plan = pattern.plan();
+        assertEquals( 4, plan.length() );
+        assertFalse( plan.isClosing( 0 ) );
+        assertFalse( plan.isClosing( 1 ) );
+        // The cycle is closed as soon as it can be, before expanding to d
+        assertTrue( plan.isClosing( 2 ) );
+        assertEquals( toD, pattern.relationship( plan.relationship( 3 ) ) );
+    }
+
+    @Test
+    public void degreeSignaturesLeaveOutWhatIsAlreadyKnown()
+    {
+        PatternNode company = new PatternNode( "company" );
+        PatternNode person = new PatternNode( "person" );
+        PatternNode friend = new PatternNode( "friend" );
+        company.createRelationshipTo( person, WORKS_AT, Direction.INCOMING );
+        for ( int i = 0; i < 3; i++ )
+        {
+            person.createRelationshipTo( i == 0 ? friend :
+                new PatternNode(), KNOWS );
+        }
+
+        CompiledPattern pattern = PatternMatcher.getMatcher().compile(
+            company );
+        ExpansionPlan plan = pattern.plan();
+
+        // The company needs a WORKS_AT to the person, nothing more
+        int[] keys = plan.degreeKeys( pattern.ordinalOf( company ) );
+        assertEquals( 1, keys.length );
+        assertEquals( WORKS_AT.name(), plan.degreeType( keys[ 0 ] ).name() );
+        assertEquals( Direction.INCOMING, plan.degreeDirection( keys[ 0 ] ) );
+
+        // The person is reached through its WORKS_AT, so only the three
+        // KNOWS and the four outgoing relationships in total are left
+        keys = plan.degreeKeys( pattern.ordinalOf( person ) );
+        int[] counts = plan.degreeCounts( pattern.ordinalOf( person ) );
+        assertEquals( 2, keys.length );
+        assertEquals( null, plan.degreeType( keys[ 0 ] ) );
+        assertEquals( Direction.OUTGOING, plan.degreeDirection( keys[ 0 ] ) );
+        assertEquals( 4, counts[ 0 ] );
+        assertEquals( KNOWS.name(), plan.degreeType( keys[ 1 ] ).name() );
+        assertEquals( Direction.OUTGOING, plan.degreeDirection( keys[ 1 ] ) );
+        assertEquals( 3, counts[ 1 ] );
+
+        // A friend only needs the KNOWS it is reached through
+        assertEquals( null, plan.degreeKeys( pattern.ordinalOf( friend ) ) );
+    }
+}
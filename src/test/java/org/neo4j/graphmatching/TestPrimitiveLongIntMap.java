@@ -0,0 +1,53 @@
+package org.neo4j.graphmatching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPrimitiveLongIntMap
+{
+    @Test
+    public void putGetAndClear()
+    {
+        PrimitiveLongIntMap map = new PrimitiveLongIntMap( 2 );
+        map.put( 0, 1 );
+        map.put( 42, 2 );
+        map.put( 42, 3 );
+        map.put( -1, 4 );
+        map.put( Long.MIN_VALUE, 5 );
+        assertEquals( 4, map.size() );
+        assertEquals( 1, map.get( 0, -1 ) );
+        assertEquals( 3, map.get( 42, -1 ) );
+        assertEquals( 4, map.get( -1, -1 ) );
+        assertEquals( 5, map.get( Long.MIN_VALUE, -1 ) );
+        assertEquals( -1, map.get( 7, -1 ) );
+        map.clear();
+        assertEquals( 0, map.size() );
+        assertEquals( -1, map.get( 42, -1 ) );
+        assertEquals( -1, map.get( -1, -1 ) );
+    }
+
+    @Test
+    public void behavesLikeHashMapWhileGrowing()
+    {
+        Random random = new Random( 1234 );
+        PrimitiveLongIntMap map = new PrimitiveLongIntMap( 2 );
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for ( int i = 0; i < 10000; i++ )
+        {
+            long key = random.nextInt( 2000 ) - 1000;
+            map.put( key, i );
+            expected.put( key, i );
+            assertEquals( expected.size(), map.size() );
+        }
+        for ( long key = -1000; key < 1000; key++ )
+        {
+            Integer value = expected.get( key );
+            assertEquals( value != null ? value : -1, map.get( key, -1 ) );
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.neo4j.graphmatching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestPrimitiveLongSet
+{
+    @Test
+    public void addContainsAndRemove()
+    {
+        PrimitiveLongSet set = new PrimitiveLongSet( 4 );
+        assertTrue( set.add( 0 ) );
+        assertTrue( set.add( 42 ) );
+        assertFalse( set.add( 42 ) );
+        assertEquals( 2, set.size() );
+        assertTrue( set.contains( 0 ) );
+        assertTrue( set.contains( 42 ) );
+        assertFalse( set.contains( 7 ) );
+        assertTrue( set.remove( 42 ) );
+        assertFalse( set.remove( 42 ) );
+        assertFalse( set.contains( 42 ) );
+        assertEquals( 1, set.size() );
+        set.clear();
+        assertFalse( set.contains( 0 ) );
+        assertEquals( 0, set.size() );
+    }
+
+    @Test
+    public void behavesLikeHashSetUnderRandomChurn()
+    {
+        // A small key space forces long probe sequences, so that removing
+        // from the middle of them has to shift the entries after it back.
+        Random random = new Random( 1234 );
+        PrimitiveLongSet set = new PrimitiveLongSet( 2 );
+        Set<Long> expected = new HashSet<Long>();
+        for ( int i = 0; i < 100000; i++ )
+        {
+            long value = random.nextInt( 64 );
+            if ( random.nextBoolean() )
+            {
+                assertEquals( expected.add( value ), set.add( value ) );
+            }
+            else
+            {
+                assertEquals( expected.remove( value ), set.remove( value ) );
+            }
+            assertEquals( expected.size(), set.size() );
+        }
+        for ( long value = 0; value < 64; value++ )
+        {
+            assertEquals( expected.contains( value ), set.contains( value ) );
+        }
+    }
+
+    @Test
+    public void holdsNegativeValues()
+    {
+        PrimitiveLongSet set = new PrimitiveLongSet( 4 );
+        assertTrue( set.add( -1 ) );
+        assertFalse( set.add( -1 ) );
+        assertTrue( set.add( Long.MIN_VALUE ) );
+        assertTrue( set.add( -2 ) );
+        assertEquals( 3, set.size() );
+        assertTrue( set.contains( -1 ) );
+        assertTrue( set.contains( Long.MIN_VALUE ) );
+        assertTrue( set.remove( -1 ) );
+        assertFalse( set.contains( -1 ) );
+        assertEquals( 2, set.size() );
+        set.add( -1 );
+        set.clear();
+        assertFalse( set.contains( -1 ) );
+        assertEquals( 0, set.size() );
+    }
+}
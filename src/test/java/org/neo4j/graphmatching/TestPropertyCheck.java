@@ -0,0 +1,78 @@
+package org.neo4j.graphmatching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class TestPropertyCheck
+{
+    @Test
+    public void exactValuesAreCheckedInline()
+    {
+        PropertyCheck check = PropertyCheck.compile( new ValueMatcher[] {
+            CommonValueMatchers.has(), CommonValueMatchers.exact( "x" ) } );
+        assertTrue( check instanceof PropertyCheck.Exact );
+        assertTrue( check.matches( "x" ) );
+        assertFalse( check.matches( "y" ) );
+        assertFalse( check.matches( null ) );
+    }
+
+    @Test
+    public void hasIsOnlyDroppedWhenImplied()
+    {
+        ValueMatcher acceptsAnything = new ValueMatcher()
+        {
+            public boolean matches( Object value )
+            {
+                return true;
+            }
+        };
+        PropertyCheck check = PropertyCheck.compile( new ValueMatcher[] {
+            CommonValueMatchers.has(), CommonValueMatchers.has(),
+            acceptsAnything } );
+        assertTrue( check instanceof PropertyCheck.Generic );
+        assertFalse( check.matches( null ) );
+        assertTrue( check.matches( 1 ) );
+
+        check = PropertyCheck.compile( new ValueMatcher[] {
+            CommonValueMatchers.has(),
+            CommonValueMatchers.regex( Pattern.compile( "a.c" ) ) } );
+        assertTrue( check instanceof PropertyCheck.Generic );
+        assertTrue( check.matches( "abc" ) );
+        assertFalse( check.matches( null ) );
+    }
+
+    @Test
+    public void keepsTheOrderOfTheMatchers()
+    {
+        final int[] calls = new int[ 1 ];
+        ValueMatcher counting = new ValueMatcher()
+        {
+            public boolean matches( Object value )
+            {
+                calls[ 0 ]++;
+                return true;
+            }
+        };
+        PropertyCheck check = PropertyCheck.compile( new ValueMatcher[] {
+            counting, CommonValueMatchers.has() } );
+        assertFalse( check.matches( null ) );
+        assertEquals( 1, calls[ 0 ] );
+    }
+
+    @Test
+    public void allMatchersMustAccept()
+    {
+        PropertyCheck check = PropertyCheck.compile( new ValueMatcher[] {
+            CommonValueMatchers.exactAny( 2 ),
+            CommonValueMatchers.exactAnyOf( 1, 2, 3 ) } );
+        assertTrue( check.matches( 2 ) );
+        assertTrue( check.matches( new int[] { 5, 2 } ) );
+        assertFalse( check.matches( 3 ) );
+        assertFalse( check.matches( null ) );
+    }
+}
@@ -0,0 +1,192 @@
+package org.neo4j.graphmatching;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Compares keeping the visited relationships of a search in a
+ * {@link HashSet} of relationships against a {@link PrimitiveLongSet} of
+ * relationship ids, and times matching a cyclic pattern end to end. The
+ * graph is a ring of nodes where every node is also connected to the nodes
+ * two steps ahead, so that the triangle pattern backtracks a lot.
+ *
+ * Run it with the main method, it's not a test.
+ */
+public class VisitedRelationshipsBenchmark
+{
+    private static enum RelTypes implements RelationshipType
+    {
+        NEXT
+    }
+
+    private static final int RING_SIZE = 2000;
+    private static final int ROUNDS = 10;
+
+    public static void main( String[] args )
+    {
+        GraphDatabaseService graphDb = new EmbeddedGraphDatabase(
+            "target/var/benchmark-visited" );
+        try
+        {
+            List<Node> ring = createRing( graphDb );
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                List<Relationship> rels = new ArrayList<Relationship>();
+                for ( Node node : ring )
+                {
+                    for ( Relationship rel : node.getRelationships() )
+                    {
+                        rels.add( rel );
+                    }
+                }
+                for ( int round = 0; round < ROUNDS; round++ )
+                {
+                    System.out.println( "HashSet<Relationship>: " +
+                        timeHashSet( rels ) + " ms, PrimitiveLongSet: " +
+                        timeLongSet( rels ) + " ms, triangles: " +
+                        timeMatching( ring ) + " ms" );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            graphDb.shutdown();
+        }
+    }
+
+    private static List<Node> createRing( GraphDatabaseService graphDb )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            List<Node> ring = new ArrayList<Node>();
+            for ( int i = 0; i < RING_SIZE; i++ )
+            {
+                ring.add( graphDb.createNode() );
+            }
+            for ( int i = 0; i < RING_SIZE; i++ )
+            {
+                Node node = ring.get( i );
+                node.createRelationshipTo( ring.get( ( i + 1 ) % RING_SIZE ),
+                    RelTypes.NEXT );
+                node.createRelationshipTo( ring.get( ( i + 2 ) % RING_SIZE ),
+                    RelTypes.NEXT );
+            }
+            tx.success();
+            return ring;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Mimics the bind and unbind calls of a three step search, where each
+     * step tries every relationship in a window of candidates.
+     */
+    private static long timeHashSet( List<Relationship> rels )
+    {
+        long start = System.currentTimeMillis();
+        Set<Relationship> visited = new HashSet<Relationship>();
+        int hits = 0;
+        for ( int i = 0; i + 8 < rels.size(); i++ )
+        {
+            visited.add( rels.get( i ) );
+            for ( int j = i; j < i + 8; j++ )
+            {
+                Relationship candidate = rels.get( j );
+                if ( visited.contains( candidate ) )
+                {
+                    hits++;
+                    continue;
+                }
+                visited.add( candidate );
+                for ( int k = i; k < i + 8; k++ )
+                {
+                    if ( visited.contains( rels.get( k ) ) )
+                    {
+                        hits++;
+                    }
+                }
+                visited.remove( candidate );
+            }
+            visited.remove( rels.get( i ) );
+        }
+        return System.currentTimeMillis() - start + ( hits < 0 ? 1 : 0 );
+    }
+
+    private static long timeLongSet( List<Relationship> rels )
+    {
+        long start = System.currentTimeMillis();
+        PrimitiveLongSet visited = new PrimitiveLongSet( 3 );
+        int hits = 0;
+        for ( int i = 0; i + 8 < rels.size(); i++ )
+        {
+            visited.add( rels.get( i ).getId() );
+            for ( int j = i; j < i + 8; j++ )
+            {
+                long candidate = rels.get( j ).getId();
+                if ( visited.contains( candidate ) )
+                {
+                    hits++;
+                    continue;
+                }
+                visited.add( candidate );
+                for ( int k = i; k < i + 8; k++ )
+                {
+                    if ( visited.contains( rels.get( k ).getId() ) )
+                    {
+                        hits++;
+                    }
+                }
+                visited.remove( candidate );
+            }
+            visited.remove( rels.get( i ).getId() );
+        }
+        return System.currentTimeMillis() - start + ( hits < 0 ? 1 : 0 );
+    }
+
+    private static long timeMatching( List<Node> ring )
+    {
+        PatternNode a = new PatternNode();
+        PatternNode b = new PatternNode();
+        PatternNode c = new PatternNode();
+        a.createRelationshipTo( b, RelTypes.NEXT );
+        b.createRelationshipTo( c, RelTypes.NEXT );
+        a.createRelationshipTo( c, RelTypes.NEXT );
+        PatternMatcher matcher = PatternMatcher.getMatcher();
+        CompiledPattern pattern = matcher.compile( a );
+
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for ( Node node : ring )
+        {
+            for ( PatternMatch match : matcher.match( pattern, node ) )
+            {
+                count++;
+            }
+        }
+        if ( count != RING_SIZE )
+        {
+            throw new IllegalStateException( "Expected " + RING_SIZE +
+                " triangles, found " + count );
+        }
+        return System.currentTimeMillis() - start;
+    }
+}